@@ -0,0 +1,54 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi;
+
+import org.jetbrains.annotations.NotNull;
+
+public class JavaReparsePerformanceTest extends AbstractReparsePerformanceTestCase {
+  @Override
+  protected String getFileName() {
+    return "A.java";
+  }
+
+  @NotNull
+  @Override
+  protected String generateText(int lineCount) {
+    StringBuilder text = new StringBuilder("class A {\n  private int myField;\n\n");
+    for (int i = 0; i < lineCount / 5; i++) {
+      text.append("  public int method").append(i).append("(int p) {\n")
+        .append("    int x = p * ").append(i).append(";\n")
+        .append("    return x + myField;\n")
+        .append("  }\n\n");
+    }
+    return text.append("}\n").toString();
+  }
+
+  public void testTyping() {
+    doTypingTest(1000, "return x", " + foo(x, \"s\")", 1000);
+  }
+
+  public void testTypingInHugeFile() {
+    doTypingTest(100000, "return x", " + foo(x, \"s\")", 3000);
+  }
+
+  public void testPaste() {
+    doPasteTest(10000, "  }\n", "\n  void pasted(String s) {\n    if (s != null) {\n      System.out.println(s);\n    }\n  }\n", 1000);
+  }
+
+  public void testReplaceAll() {
+    doBulkReplaceTest(10000, "myField", "myCounter", 3000);
+  }
+}
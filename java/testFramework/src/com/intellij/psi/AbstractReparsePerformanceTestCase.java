@@ -0,0 +1,229 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.command.CommandProcessor;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.ex.DocumentEx;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.psi.impl.source.text.DiffLog;
+import com.intellij.psi.text.BlockSupport;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.testFramework.PsiTestCase;
+import com.intellij.util.ThrowableRunnable;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Measures incremental reparse of big files in typing, paste and "replace all" scenarios.
+ * Every scenario is a sequence of steps, each step changes the document and commits it. Besides asserting the total time,
+ * prints the commit time, the number of tree changes and the memory allocated per step.
+ *
+ * @see AbstractReparseTestCase
+ */
+public abstract class AbstractReparsePerformanceTestCase extends PsiTestCase {
+  private PsiFile myFile;
+
+  /**
+   * @return name of the file to parse, the file type is determined by its extension
+   */
+  @NonNls
+  protected abstract String getFileName();
+
+  /**
+   * @return text of a file with the given number of lines
+   */
+  @NotNull
+  protected abstract String generateText(int lineCount);
+
+  /**
+   * Types the given string char by char, committing the document after each char.
+   */
+  protected void doTypingTest(int lineCount, @NonNls @NotNull String anchor, @NonNls @NotNull String typed, int expectedMs) {
+    final String text = generateText(lineCount);
+    final int offset = findMiddleOccurrence(text, anchor);
+    final List<List<Edit>> steps = new ArrayList<List<Edit>>();
+    for (int i = 0; i < typed.length(); i++) {
+      steps.add(Collections.singletonList(new Edit(offset + i, 0, String.valueOf(typed.charAt(i)))));
+    }
+    doTest("typing in " + lineCount + " lines", text, steps, expectedMs);
+  }
+
+  /**
+   * Inserts the given string at once.
+   */
+  protected void doPasteTest(int lineCount, @NonNls @NotNull String anchor, @NonNls @NotNull String pasted, int expectedMs) {
+    final String text = generateText(lineCount);
+    final Edit edit = new Edit(findMiddleOccurrence(text, anchor), 0, pasted);
+    doTest("paste in " + lineCount + " lines", text, Collections.singletonList(Collections.singletonList(edit)), expectedMs);
+  }
+
+  /**
+   * Replaces all occurrences of the given string in a single bulk update.
+   */
+  protected void doBulkReplaceTest(int lineCount, @NonNls @NotNull String from, @NonNls @NotNull String to, int expectedMs) {
+    final String text = generateText(lineCount);
+    final List<Edit> edits = new ArrayList<Edit>();
+    for (int offset = text.indexOf(from); offset >= 0; offset = text.indexOf(from, offset + from.length())) {
+      edits.add(new Edit(offset, from.length(), to));
+    }
+    assertFalse("No occurrences of " + from, edits.isEmpty());
+    doTest("replace all in " + lineCount + " lines", text, Collections.singletonList(edits), expectedMs);
+  }
+
+  private void doTest(@NotNull final String name, @NotNull final String text, @NotNull final List<List<Edit>> steps, int expectedMs) {
+    printStatistics(name, text, steps);
+
+    PlatformTestUtil.startPerformanceTest("Reparse: " + name, expectedMs, new ThrowableRunnable() {
+      @Override
+      public void run() throws Throwable {
+        for (List<Edit> step : steps) {
+          applyAndCommit(step);
+        }
+      }
+    }).setup(new ThrowableRunnable() {
+      @Override
+      public void run() throws Throwable {
+        prepareFile(text);
+      }
+    }).cpuBound().assertTiming();
+  }
+
+  private void printStatistics(@NotNull String name, @NotNull String text, @NotNull List<List<Edit>> steps) {
+    prepareFile(text);
+    long totalNanos = 0;
+    long maxNanos = 0;
+    long totalChanges = 0;
+    long totalAllocated = 0;
+    final boolean measureAllocations = getAllocatedBytes() >= 0;
+    for (List<Edit> step : steps) {
+      totalChanges += computeDiffLog(step).getChangeCount();
+
+      final long allocatedBefore = getAllocatedBytes();
+      final long start = System.nanoTime();
+      applyAndCommit(step);
+      final long nanos = System.nanoTime() - start;
+      totalAllocated += getAllocatedBytes() - allocatedBefore;
+
+      totalNanos += nanos;
+      maxNanos = Math.max(maxNanos, nanos);
+    }
+    assertEquals("Reparsed tree text", getDocument().getText(), myFile.getText());
+
+    final int count = steps.size();
+    System.out.println("Reparse " + name + ": " + count + " steps" +
+                       ", average " + totalNanos / count / 1000 + " us" +
+                       ", max " + maxNanos / 1000 + " us" +
+                       ", " + totalChanges / count + " tree changes" +
+                       (measureAllocations ? ", " + totalAllocated / count / 1024 + " KB allocated" : "") +
+                       " per step");
+  }
+
+  private void prepareFile(@NotNull String text) {
+    myFile = createDummyFile(getFileName(), text);
+    assertNotNull(getDocument());
+  }
+
+  @NotNull
+  private Document getDocument() {
+    final Document document = PsiDocumentManager.getInstance(myProject).getDocument(myFile);
+    assert document != null : myFile;
+    return document;
+  }
+
+  /**
+   * Reparses the file as if the step was applied but doesn't change anything, to find out the number of tree changes.
+   */
+  @NotNull
+  private DiffLog computeDiffLog(@NotNull List<Edit> step) {
+    final String text = getDocument().getText();
+    final StringBuilder newText = new StringBuilder(text);
+    int lengthShift = 0;
+    for (int i = step.size() - 1; i >= 0; i--) {
+      final Edit edit = step.get(i);
+      newText.replace(edit.offset, edit.offset + edit.length, edit.text);
+      lengthShift += edit.text.length() - edit.length;
+    }
+    final Edit first = step.get(0);
+    final Edit last = step.get(step.size() - 1);
+    return BlockSupport.getInstance(myProject).reparseRange(myFile, first.offset, last.offset + last.length, lengthShift, newText,
+                                                            new EmptyProgressIndicator());
+  }
+
+  private void applyAndCommit(@NotNull final List<Edit> step) {
+    CommandProcessor.getInstance().executeCommand(myProject, new Runnable() {
+      @Override
+      public void run() {
+        ApplicationManager.getApplication().runWriteAction(new Runnable() {
+          @Override
+          public void run() {
+            final DocumentEx document = (DocumentEx)getDocument();
+            final boolean bulk = step.size() > 1;
+            if (bulk) document.setInBulkUpdate(true);
+            try {
+              for (int i = step.size() - 1; i >= 0; i--) {
+                final Edit edit = step.get(i);
+                document.replaceString(edit.offset, edit.offset + edit.length, edit.text);
+              }
+            }
+            finally {
+              if (bulk) document.setInBulkUpdate(false);
+            }
+            PsiDocumentManager.getInstance(myProject).commitDocument(document);
+          }
+        });
+      }
+    }, "reparse", null);
+  }
+
+  private static int findMiddleOccurrence(@NotNull String text, @NotNull String anchor) {
+    final int count = StringUtil.getOccurrenceCount(text, anchor);
+    assertTrue("No occurrences of " + anchor, count > 0);
+    int offset = -1;
+    for (int i = 0; i <= count / 2; i++) {
+      offset = text.indexOf(anchor, offset + 1);
+    }
+    return offset + anchor.length();
+  }
+
+  private static long getAllocatedBytes() {
+    final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+
+  private static class Edit {
+    private final int offset;
+    private final int length;
+    private final String text;
+
+    private Edit(int offset, int length, @NotNull String text) {
+      this.offset = offset;
+      this.length = length;
+      this.text = text;
+    }
+  }
+}
@@ -15,9 +15,9 @@
  */
 package org.jetbrains.jps.builders.java.dependencyView;
 
-import com.intellij.openapi.util.Ref;
 import com.intellij.util.Processor;
 import com.intellij.util.containers.SLRUCache;
+import com.intellij.util.io.Bits;
 import com.intellij.util.io.DataExternalizer;
 import com.intellij.util.io.KeyDescriptor;
 import com.intellij.util.io.PersistentHashMap;
@@ -34,7 +34,7 @@ import java.io.*;
  */
 class IntIntPersistentMultiMaplet extends IntIntMultiMaplet {
   private static final TIntHashSet NULL_COLLECTION = new TIntHashSet();
-  private static final int CACHE_SIZE = 128;
+  private static final int CACHE_SIZE = 1024;
   private final PersistentHashMap<Integer, TIntHashSet> myMap;
   private final SLRUCache<Integer, TIntHashSet> myCache;
 
@@ -57,6 +57,10 @@ class IntIntPersistentMultiMaplet extends IntIntMultiMaplet {
 
   @Override
   public boolean containsKey(final int key) {
+    final TIntHashSet cached = myCache.getIfCached(key);
+    if (cached != null) {
+      return cached != NULL_COLLECTION;
+    }
     try {
       return myMap.containsMapping(key);
     }
@@ -93,24 +97,7 @@ class IntIntPersistentMultiMaplet extends IntIntMultiMaplet {
       myCache.remove(key);
       myMap.appendData(key, new PersistentHashMap.ValueDataAppender() {
         public void append(final DataOutput out) throws IOException {
-          final Ref<IOException> exRef = new Ref<IOException>();
-          value.forEach(new TIntProcedure() {
-            @Override
-            public boolean execute(int value) {
-              try {
-                out.writeInt(value);
-              }
-              catch (IOException e) {
-                exRef.set(e);
-                return false;
-              }
-              return true;
-            }
-          });
-          final IOException exception = exRef.get();
-          if (exception != null) {
-            throw exception;
-          }
+          out.write(toBytes(value));
         }
       });
     }
@@ -252,35 +239,37 @@ class IntIntPersistentMultiMaplet extends IntIntMultiMaplet {
     }
   }
 
+  // same layout as a sequence of DataOutput.writeInt() calls, but written and read in one bulk operation
+  private static byte[] toBytes(final TIntHashSet set) {
+    final byte[] bytes = new byte[set.size() * 4];
+    set.forEach(new TIntProcedure() {
+      private int myOffset;
+
+      @Override
+      public boolean execute(int value) {
+        Bits.putInt(bytes, myOffset, value);
+        myOffset += 4;
+        return true;
+      }
+    });
+    return bytes;
+  }
+
   private static class IntSetExternalizer implements DataExternalizer<TIntHashSet> {
     @Override
     public void save(final DataOutput out, final TIntHashSet value) throws IOException {
-      final Ref<IOException> exRef = new Ref<IOException>(null);
-      value.forEach(new TIntProcedure() {
-        @Override
-        public boolean execute(int elem) {
-          try {
-            out.writeInt(elem);
-          }
-          catch (IOException e) {
-            exRef.set(e);
-            return false;
-          }
-          return true;
-        }
-      });
-      final IOException exception = exRef.get();
-      if (exception != null) {
-        throw exception;
-      }
+      out.write(toBytes(value));
     }
 
     @Override
     public TIntHashSet read(final DataInput in) throws IOException {
-      final TIntHashSet result = new TIntHashSet();
       final DataInputStream stream = (DataInputStream)in;
-      while (stream.available() > 0) {
-        result.add(in.readInt());
+      final byte[] bytes = new byte[stream.available()];
+      stream.readFully(bytes);
+      // appended chunks may repeat values, so the number of ints is an upper bound of the set size
+      final TIntHashSet result = new TIntHashSet(bytes.length / 4);
+      for (int offset = 0; offset + 4 <= bytes.length; offset += 4) {
+        result.add(Bits.getInt(bytes, offset));
       }
       return result;
     }
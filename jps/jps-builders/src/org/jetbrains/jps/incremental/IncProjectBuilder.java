@@ -82,7 +82,7 @@ public class IncProjectBuilder {
   private static final GlobalContextKey<Set<BuildTarget<?>>> TARGET_WITH_CLEARED_OUTPUT = GlobalContextKey.create("_targets_with_cleared_output_");
   private static final int MAX_BUILDER_THREADS;
   static {
-    int maxThreads = 6;
+    int maxThreads = Math.max(6, Runtime.getRuntime().availableProcessors());
     try {
       maxThreads = Math.max(2, Integer.parseInt(System.getProperty(GlobalOptions.COMPILE_PARALLEL_MAX_THREADS_OPTION, Integer.toString(maxThreads))));
     }
@@ -592,6 +592,8 @@ public class IncProjectBuilder {
     private final BuildTargetChunk myChunk;
     private final Set<BuildChunkTask> myNotBuiltDependencies = new THashSet<BuildChunkTask>();
     private final List<BuildChunkTask> myTasksDependsOnThis = new ArrayList<BuildChunkTask>();
+    // number of targets on the longest chain of chunks waiting for this one; chunks on the critical path are started first
+    private int myPriority;
 
     private BuildChunkTask(BuildTargetChunk chunk) {
       myChunk = chunk;
@@ -601,6 +603,18 @@ public class IncProjectBuilder {
       return myChunk;
     }
 
+    public int getPriority() {
+      return myPriority;
+    }
+
+    private void computePriority() {
+      int priority = 0;
+      for (BuildChunkTask task : myTasksDependsOnThis) {
+        priority = Math.max(priority, task.myPriority);
+      }
+      myPriority = priority + myChunk.getTargets().size();
+    }
+
     public boolean isReady() {
       return myNotBuiltDependencies.isEmpty();
     }
@@ -632,6 +646,12 @@ public class IncProjectBuilder {
     private final CompileContext myContext;
     private final AtomicReference<Throwable> myException = new AtomicReference<Throwable>();
     private final Object myQueueLock = new Object();
+    private final PriorityQueue<BuildChunkTask> myReadyTasks = new PriorityQueue<BuildChunkTask>(11, new Comparator<BuildChunkTask>() {
+      @Override
+      public int compare(BuildChunkTask o1, BuildChunkTask o2) {
+        return o2.getPriority() - o1.getPriority();
+      }
+    });
     private final CountDownLatch myTasksCountDown;
     private final List<BuildChunkTask> myTasks;
 
@@ -662,6 +682,11 @@ public class IncProjectBuilder {
         }
       }
 
+      // chunks are sorted so that dependencies go first, so all dependent chunks are processed before their dependency here
+      for (int i = myTasks.size() - 1; i >= 0; i--) {
+        myTasks.get(i).computePriority();
+      }
+
       myTasksCountDown = new CountDownLatch(myTasks.size());
     }
 
@@ -713,12 +738,23 @@ public class IncProjectBuilder {
       }
     }
 
-    private void queueTask(final BuildChunkTask task) {
-      final CompileContext chunkLocalContext = createContextWrapper(myContext);
+    private void queueTask(BuildChunkTask readyTask) {
+      synchronized (myQueueLock) {
+        myReadyTasks.offer(readyTask);
+      }
+      // every submitted runnable builds one chunk, the most critical one among those ready at the moment it starts
       myParallelBuildExecutor.execute(new Runnable() {
         @Override
         public void run() {
+          final BuildChunkTask task;
+          synchronized (myQueueLock) {
+            task = myReadyTasks.poll();
+          }
           try {
+            if (!LOG.assertTrue(task != null, "no ready chunk for the started build task")) {
+              return;
+            }
+            final CompileContext chunkLocalContext = createContextWrapper(myContext);
             try {
               if (myException.get() == null) {
                 buildChunkIfAffected(chunkLocalContext, myContext.getScope(), task.getChunk());
@@ -735,14 +771,16 @@ public class IncProjectBuilder {
             LOG.info(e);
           }
           finally {
-            LOG.debug("Finished compilation of " + task.getChunk().toString());
             myTasksCountDown.countDown();
-            List<BuildChunkTask> nextTasks;
-            synchronized (myQueueLock) {
-              nextTasks = task.markAsFinishedAndGetNextReadyTasks();
-            }
-            if (!nextTasks.isEmpty()) {
-              queueTasks(nextTasks);
+            if (task != null) {
+              LOG.debug("Finished compilation of " + task.getChunk().toString());
+              List<BuildChunkTask> nextTasks;
+              synchronized (myQueueLock) {
+                nextTasks = task.markAsFinishedAndGetNextReadyTasks();
+              }
+              if (!nextTasks.isEmpty()) {
+                queueTasks(nextTasks);
+              }
             }
           }
         }
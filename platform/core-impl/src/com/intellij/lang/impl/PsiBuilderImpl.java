@@ -52,6 +52,7 @@ import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.lang.ref.SoftReference;
 import java.lang.reflect.Field;
 import java.util.AbstractList;
 import java.util.ArrayList;
@@ -98,29 +99,10 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
   private Map<Key, Object> myUserData = null;
   private IElementType myCachedTokenType;
 
-  private final LimitedPool<StartMarker> START_MARKERS = new LimitedPool<StartMarker>(2000, new LimitedPool.ObjectFactory<StartMarker>() {
-    @Override
-    public StartMarker create() {
-      return new StartMarker();
-    }
-
-    @Override
-    public void cleanup(final StartMarker startMarker) {
-      startMarker.clean();
-    }
-  });
-
-  private final LimitedPool<DoneMarker> DONE_MARKERS = new LimitedPool<DoneMarker>(2000, new LimitedPool.ObjectFactory<DoneMarker>() {
-    @Override
-    public DoneMarker create() {
-      return new DoneMarker();
-    }
-
-    @Override
-    public void cleanup(final DoneMarker doneMarker) {
-      doneMarker.clean();
-    }
-  });
+  private final MarkerPools myMarkerPools = MarkerPools.borrow();
+  private boolean myTreeBuilt;
+  private final LimitedPool<StartMarker> START_MARKERS = myMarkerPools.myStartMarkers;
+  private final LimitedPool<DoneMarker> DONE_MARKERS = myMarkerPools.myDoneMarkers;
 
   private static final WhitespacesAndCommentsBinder DEFAULT_LEFT_EDGE_TOKEN_BINDER = new WhitespacesAndCommentsBinder() {
     @Override
@@ -441,6 +423,7 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
   }
 
   private Marker precede(final StartMarker marker) {
+    checkTreeNotBuilt();
     int idx = myProduction.lastIndexOf(marker);
     if (idx < 0) {
       LOG.error("Cannot precede dropped or rolled-back marker");
@@ -831,6 +814,7 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
 
   @SuppressWarnings({"SuspiciousMethodCalls"})
   private void rollbackTo(Marker marker) {
+    checkTreeNotBuilt();
     myCurrentLexeme = ((StartMarker)marker).myLexemeIndex;
     myTokenTypeChecked = true;
     int idx = myProduction.lastIndexOf(marker);
@@ -844,10 +828,11 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
 
   @SuppressWarnings({"SuspiciousMethodCalls"})
   public void drop(Marker marker) {
+    checkTreeNotBuilt();
     final DoneMarker doneMarker = ((StartMarker)marker).myDoneMarker;
     if (doneMarker != null) {
       myProduction.remove(myProduction.lastIndexOf(doneMarker));
-      DONE_MARKERS.recycle(doneMarker);
+      recycleDoneMarker(doneMarker);
     }
     final boolean removed = myProduction.remove(myProduction.lastIndexOf(marker)) == marker;
     if (!removed) {
@@ -927,6 +912,7 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
 
   @SuppressWarnings({"UseOfSystemOutOrSystemErr", "SuspiciousMethodCalls", "ThrowableResultOfMethodCallIgnored"})
   private void doValidityChecks(final Marker marker, @Nullable final Marker before) {
+    checkTreeNotBuilt();
     final DoneMarker doneMarker = ((StartMarker)marker).myDoneMarker;
     if (doneMarker != null) {
       LOG.error("Marker already done.");
@@ -983,14 +969,38 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
       return buildTree();
     }
     finally {
-      for (ProductionMarker marker : myProduction) {
-        if (marker instanceof StartMarker) {
-          START_MARKERS.recycle((StartMarker)marker);
-        }
-        else if (marker instanceof DoneMarker) {
-          DONE_MARKERS.recycle((DoneMarker)marker);
+      // in debug mode markers are not recycled, so that a marker kept by the parser stays bound to this builder and its misuse is reported
+      if (!myTreeBuilt && !myDebugMode) {
+        for (ProductionMarker marker : myProduction) {
+          if (marker instanceof StartMarker) {
+            START_MARKERS.recycle((StartMarker)marker);
+          }
+          else if (marker instanceof DoneMarker) {
+            recycleDoneMarker((DoneMarker)marker);
+          }
         }
       }
+      releaseMarkerPools();
+    }
+  }
+
+  private void releaseMarkerPools() {
+    if (!myTreeBuilt) {
+      myTreeBuilt = true;
+      myMarkerPools.release();
+    }
+  }
+
+  private void checkTreeNotBuilt() {
+    if (myTreeBuilt) {
+      LOG.error("Marker is used after the tree has been built. Markers must not be kept after getTreeBuilt() or getLightTree()");
+    }
+  }
+
+  private void recycleDoneMarker(@NotNull DoneMarker doneMarker) {
+    // markers with errors are allocated separately, the pool must give out plain done markers only
+    if (!(doneMarker instanceof DoneWithErrorMarker)) {
+      DONE_MARKERS.recycle(doneMarker);
     }
   }
 
@@ -1017,6 +1027,8 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
   @Override
   public FlyweightCapableTreeStructure<LighterASTNode> getLightTree() {
     final StartMarker rootMarker = prepareLightTree();
+    // the markers are the nodes of the light tree and cannot be recycled, but the pools hold only unused markers and can be reused
+    releaseMarkerPools();
     return new MyTreeStructure(rootMarker, myParentLightTree);
   }
 
@@ -1642,6 +1654,58 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
     return ASTFactory.leaf(type, text);
   }
 
+  /**
+   * Markers of a built tree are recycled in {@link #getTreeBuilt()}, and the pools are kept for the next builder created
+   * in the same thread, so that parsing doesn't allocate new markers for every production every time.
+   * {@link #getLightTree()} returns the pools too, but not its markers: they are the nodes of the light tree.
+   * A builder owns the pools exclusively until it is done, builders created meanwhile (e.g. for lazy-parseable elements)
+   * get pools of their own.
+   */
+  private static class MarkerPools {
+    private static final int CAPACITY = 10000;
+    private static final ThreadLocal<SoftReference<MarkerPools>> ourThreadPools = new ThreadLocal<SoftReference<MarkerPools>>();
+
+    private final LimitedPool<StartMarker> myStartMarkers = new LimitedPool<StartMarker>(CAPACITY, new LimitedPool.ObjectFactory<StartMarker>() {
+      @Override
+      public StartMarker create() {
+        return new StartMarker();
+      }
+
+      @Override
+      public void cleanup(final StartMarker startMarker) {
+        startMarker.clean();
+      }
+    });
+
+    private final LimitedPool<DoneMarker> myDoneMarkers = new LimitedPool<DoneMarker>(CAPACITY, new LimitedPool.ObjectFactory<DoneMarker>() {
+      @Override
+      public DoneMarker create() {
+        return new DoneMarker();
+      }
+
+      @Override
+      public void cleanup(final DoneMarker doneMarker) {
+        doneMarker.clean();
+      }
+    });
+
+    @NotNull
+    private static MarkerPools borrow() {
+      final SoftReference<MarkerPools> ref = ourThreadPools.get();
+      final MarkerPools pools = ref != null ? ref.get() : null;
+      if (pools == null) return new MarkerPools();
+      ourThreadPools.remove();
+      return pools;
+    }
+
+    private void release() {
+      final SoftReference<MarkerPools> ref = ourThreadPools.get();
+      if (ref == null || ref.get() == null) {
+        ourThreadPools.set(new SoftReference<MarkerPools>(this));
+      }
+    }
+  }
+
   /**
    * just to make removeRange method available.
    */
@@ -48,6 +48,7 @@ public class JarHandlerBase {
 
   private final TimedReference<JarFile> myJarFile = new TimedReference<JarFile>(null);
   private Reference<Map<String, EntryInfo>> myRelPathsToEntries = new SoftReference<Map<String, EntryInfo>>(null);
+  private Reference<DirectoryChildren> myDirectoryChildren = new SoftReference<DirectoryChildren>(null);
   private final Object lock = new Object();
 
   protected final String myBasePath;
@@ -56,6 +57,9 @@ public class JarHandlerBase {
     protected final boolean isDirectory;
     protected final String shortName;
     protected final EntryInfo parent;
+    // taken from the central directory, so that attribute queries don't have to look the entry up in the zip file again
+    private long length = DEFAULT_LENGTH;
+    private long timestamp = DEFAULT_TIMESTAMP;
 
     public EntryInfo(@NotNull String shortName, final EntryInfo parent, final boolean directory) {
       this.shortName = shortName;
@@ -64,6 +68,17 @@ public class JarHandlerBase {
     }
   }
 
+  // names of directory children, valid only for the entries map they were collected from
+  private static class DirectoryChildren {
+    private final Map<String, EntryInfo> myEntries;
+    private final Map<EntryInfo, String[]> myChildren;
+
+    private DirectoryChildren(@NotNull Map<String, EntryInfo> entries) {
+      myEntries = entries;
+      myChildren = collectDirectoryChildren(entries);
+    }
+  }
+
   public JarHandlerBase(@NotNull String path) {
     myBasePath = path;
   }
@@ -71,6 +86,7 @@ public class JarHandlerBase {
   protected void clear() {
     synchronized (lock) {
       myRelPathsToEntries = null;
+      myDirectoryChildren = null;
       myJarFile.set(null);
     }
   }
@@ -90,7 +106,12 @@ public class JarHandlerBase {
             JarFile.JarEntry entry = entries.nextElement();
             final String name = entry.getName();
             final boolean isDirectory = StringUtil.endsWithChar(name, '/');
-            getOrCreate(isDirectory ? name.substring(0, name.length() - 1) : name, isDirectory, map);
+            final String entryName = isDirectory ? name.substring(0, name.length() - 1) : name;
+            final EntryInfo info = getOrCreate(entryName, isDirectory, map);
+            if (map.get(entryName) == info) { // names like "dir/." are mapped to the parent, which has attributes of its own
+              info.length = entry.getSize();
+              info.timestamp = entry.getTime();
+            }
           }
 
           myRelPathsToEntries = new SoftReference<Map<String, EntryInfo>>(map);
@@ -227,17 +248,39 @@ public class JarHandlerBase {
   @NotNull
   public String[] list(@NotNull final VirtualFile file) {
     synchronized (lock) {
-      EntryInfo parentEntry = getEntryInfo(file);
+      final Map<String, EntryInfo> entries = getEntriesMap();
+      final EntryInfo parentEntry = entries.get(getRelativePath(file));
+      if (parentEntry == null) return ArrayUtil.EMPTY_STRING_ARRAY;
+
+      DirectoryChildren children = myDirectoryChildren != null ? myDirectoryChildren.get() : null;
+      if (children == null || children.myEntries != entries) { // the entries map has been collected and rebuilt since
+        children = new DirectoryChildren(entries);
+        myDirectoryChildren = new SoftReference<DirectoryChildren>(children);
+      }
 
-      Set<String> names = new HashSet<String>();
-      for (EntryInfo info : getEntriesMap().values()) {
-        if (info.parent == parentEntry) {
-          names.add(info.shortName);
+      final String[] names = children.myChildren.get(parentEntry);
+      return names != null ? names : ArrayUtil.EMPTY_STRING_ARRAY;
+    }
+  }
+
+  @NotNull
+  private static Map<EntryInfo, String[]> collectDirectoryChildren(@NotNull Map<String, EntryInfo> entries) {
+    final Map<EntryInfo, Set<String>> names = new THashMap<EntryInfo, Set<String>>();
+    for (EntryInfo info : entries.values()) {
+      if (info.parent != null) {
+        Set<String> siblings = names.get(info.parent);
+        if (siblings == null) {
+          names.put(info.parent, siblings = new HashSet<String>());
         }
+        siblings.add(info.shortName);
       }
+    }
 
-      return ArrayUtil.toStringArray(names);
+    final Map<EntryInfo, String[]> result = new THashMap<EntryInfo, String[]>(names.size());
+    for (Map.Entry<EntryInfo, Set<String>> entry : names.entrySet()) {
+      result.put(entry.getKey(), ArrayUtil.toStringArray(entry.getValue()));
     }
+    return result;
   }
 
   protected EntryInfo getEntryInfo(@NotNull VirtualFile file) {
@@ -270,10 +313,8 @@ public class JarHandlerBase {
   }
 
   public long getLength(@NotNull final VirtualFile file) {
-    final JarFile.JarEntry entry = convertToEntry(file);
-    synchronized (lock) {
-      return entry == null ? DEFAULT_LENGTH : entry.getSize();
-    }
+    final EntryInfo info = getEntryInfo(file);
+    return info == null ? DEFAULT_LENGTH : info.length;
   }
 
   @NotNull
@@ -305,10 +346,8 @@ public class JarHandlerBase {
 
   public long getTimeStamp(@NotNull final VirtualFile file) {
     if (file.getParent() == null) return getOriginalFile().lastModified(); // Optimization
-    final JarFile.JarEntry entry = convertToEntry(file);
-    synchronized (lock) {
-      return entry == null ? DEFAULT_TIMESTAMP : entry.getTime();
-    }
+    final EntryInfo info = getEntryInfo(file);
+    return info == null ? DEFAULT_TIMESTAMP : info.timestamp;
   }
 
   public boolean isDirectory(@NotNull final VirtualFile file) {
@@ -331,13 +370,8 @@ public class JarHandlerBase {
 
   @Nullable
   public FileAttributes getAttributes(@NotNull final VirtualFile file) {
-    final JarFile.JarEntry entry = convertToEntry(file);
-    synchronized (lock) {
-      final EntryInfo entryInfo = getEntryInfo(getRelativePath(file));
-      if (entryInfo == null) return null;
-      final long length = entry != null ? entry.getSize() : DEFAULT_LENGTH;
-      final long timeStamp = entry != null ? entry.getTime() : DEFAULT_TIMESTAMP;
-      return new FileAttributes(entryInfo.isDirectory, false, false, false, length, timeStamp, false);
-    }
+    final EntryInfo entryInfo = getEntryInfo(file);
+    if (entryInfo == null) return null;
+    return new FileAttributes(entryInfo.isDirectory, false, false, false, entryInfo.length, entryInfo.timestamp, false);
   }
 }
@@ -35,11 +35,18 @@ import org.jetbrains.annotations.Nullable;
 
 import java.util.Map;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public class ResolveCache {
   private static final Logger LOG = Logger.getInstance("#com.intellij.psi.impl.source.resolve.ResolveCache");
-  private final ConcurrentMap[] myMaps = new ConcurrentMap[2*2*2]; //boolean physical, boolean incompleteCode, boolean isPoly
+  private final AtomicReferenceArray<ConcurrentMap> myMaps = new AtomicReferenceArray<ConcurrentMap>(2*2*2); //boolean physical, boolean incompleteCode, boolean isPoly
   private final RecursionGuard myGuard = RecursionManager.createGuard("resolveCache");
+  // hits and misses are counted on every resolve from many threads, so that is done only on demand to keep the counters' cache line quiet
+  private volatile boolean myCollectStatistics = Boolean.getBoolean("idea.resolve.cache.statistics");
+  private final AtomicLong myHits = new AtomicLong();
+  private final AtomicLong myMisses = new AtomicLong();
+  private final AtomicLong myInvalidations = new AtomicLong();
 
   public static ResolveCache getInstance(Project project) {
     ProgressIndicatorProvider.checkCanceled(); // We hope this method is being called often enough to cancel daemon processes smoothly
@@ -59,8 +66,8 @@ public class ResolveCache {
   }
 
   public ResolveCache(@NotNull MessageBus messageBus) {
-    for (int i = 0; i < myMaps.length; i++) {
-      myMaps[i] = createWeakMap();
+    for (int i = 0; i < myMaps.length(); i++) {
+      myMaps.set(i, createWeakMap());
     }
     messageBus.connect().subscribe(PsiManagerImpl.ANY_PSI_CHANGE_TOPIC, new AnyPsiChangeListener() {
       @Override
@@ -79,8 +86,39 @@ public class ResolveCache {
   }
 
   public void clearCache(boolean isPhysical) {
+    myInvalidations.incrementAndGet();
     int startIndex = isPhysical ? 0 : 1;
-    for (int i=startIndex;i<2;i++)for (int j=0;j<2;j++)for (int k=0;k<2;k++) myMaps[i*4+j*2+k].clear();
+    // fresh maps instead of clear(): no need to walk all the entries, and results of resolves started before the change can't get into the new maps
+    for (int i=startIndex;i<2;i++)for (int j=0;j<2;j++)for (int k=0;k<2;k++) myMaps.set(i*4+j*2+k, createWeakMap());
+  }
+
+  /**
+   * Turns counting of {@link #getHitCount() hits} and {@link #getMissCount() misses} on or off.
+   * It is off by default unless the <code>idea.resolve.cache.statistics</code> system property is set.
+   */
+  public void setCollectStatistics(boolean collectStatistics) {
+    myCollectStatistics = collectStatistics;
+  }
+
+  /**
+   * @return number of resolve requests answered from the cache while statistics were collected
+   */
+  public long getHitCount() {
+    return myHits.get();
+  }
+
+  /**
+   * @return number of resolve requests which had to run the resolver while statistics were collected
+   */
+  public long getMissCount() {
+    return myMisses.get();
+  }
+
+  /**
+   * @return number of times the cache was dropped because of PSI changes since the project was opened
+   */
+  public long getInvalidationCount() {
+    return myInvalidations.get();
   }
 
   @Nullable
@@ -97,8 +135,10 @@ public class ResolveCache {
     Getter<TResult> reference = map.get(ref);
     TResult result = reference == null ? null : reference.get();
     if (result != null) {
+      if (myCollectStatistics) myHits.incrementAndGet();
       return result;
     }
+    if (myCollectStatistics) myMisses.incrementAndGet();
 
     RecursionGuard.StackStamp stamp = myGuard.markStack();
     result = needToPreventRecursion ? myGuard.doPreventingRecursion(Trinity.create(ref, incompleteCode, isPoly), true, new Computable<TResult>() {
@@ -156,7 +196,7 @@ public class ResolveCache {
 
   private <TRef extends PsiReference,TResult> ConcurrentMap<TRef, Getter<TResult>> getMap(boolean physical, boolean incompleteCode, boolean isPoly) {
     //noinspection unchecked
-    return myMaps[(physical ? 0 : 1)*4 + (incompleteCode ? 0 : 1)*2 + (isPoly ? 0 : 1)];
+    return myMaps.get((physical ? 0 : 1)*4 + (incompleteCode ? 0 : 1)*2 + (isPoly ? 0 : 1));
   }
 
   private static class SoftGetter<T> extends SoftReference<T> implements Getter<T> {
@@ -61,6 +61,13 @@ public class DiffLog implements DiffTreeChangeBuilder<ASTNode,ASTNode> {
     return astDiffBuilder.getEvent();
   }
 
+  /**
+   * @return number of the tree changes recorded, a whole replaced subtree counts as a single change
+   */
+  public int getChangeCount() {
+    return myEntries.size();
+  }
+
   @Override
   public void nodeReplaced(@NotNull ASTNode oldNode, @NotNull ASTNode newNode) {
     if (oldNode instanceof FileElement && newNode instanceof FileElement) {
@@ -74,4 +74,12 @@ public abstract class FileBasedIndexExtension<K, V> {
   public boolean isKeyHighlySelective() {
     return false;
   }
+
+  /**
+   * @return true if the data built by the indexer depends only on the file content, file type, language and charset,
+   * so that files with identical content may share it instead of being indexed one by one
+   */
+  public boolean hasSnapshotMapping() {
+    return false;
+  }
 }
@@ -123,6 +123,11 @@ public class IdIndex extends FileBasedIndexExtension<IdIndexEntry, Integer> {
   public FileBasedIndex.InputFilter getInputFilter() {
     return myInputFilter;
   }
+
+  @Override
+  public boolean hasSnapshotMapping() {
+    return true;
+  }
   
   private static boolean isIndexable(FileType fileType) {
     return fileType instanceof LanguageFileType ||
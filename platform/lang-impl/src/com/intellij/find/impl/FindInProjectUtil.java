@@ -17,6 +17,7 @@
 package com.intellij.find.impl;
 
 import com.intellij.BundleBase;
+import com.intellij.concurrency.JobLauncher;
 import com.intellij.find.*;
 import com.intellij.find.ngrams.TrigramIndex;
 import com.intellij.navigation.ItemPresentation;
@@ -67,12 +68,16 @@ import com.intellij.util.indexing.FileBasedIndex;
 import gnu.trove.THashSet;
 import gnu.trove.TIntHashSet;
 import gnu.trove.TIntIterator;
+import gnu.trove.TObjectLongHashMap;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import javax.swing.*;
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 public class FindInProjectUtil {
@@ -210,15 +215,11 @@ public class FindInProjectUtil {
     final Collection<PsiFile> psiFiles = getFilesToSearchIn(findModel, project, psiDirectory);
     try {
       final Set<PsiFile> largeFiles = new THashSet<PsiFile>();
-
-      int i = 0;
-      long totalFilesSize = 0;
-      int count = 0;
-      final boolean[] warningShown = {false};
+      final List<PsiFile> filesToScan = new ArrayList<PsiFile>(psiFiles.size());
+      final TObjectLongHashMap<PsiFile> fileLengths = new TObjectLongHashMap<PsiFile>(psiFiles.size());
 
       for (final PsiFile psiFile : psiFiles) {
         final VirtualFile virtualFile = psiFile.getVirtualFile();
-        final int index = i++;
         if (virtualFile == null) continue;
 
         long fileLength = UsageViewManagerImpl.getFileLength(virtualFile);
@@ -231,30 +232,69 @@ public class FindInProjectUtil {
           continue;
         }
 
-        if (progress != null) {
-          progress.checkCanceled();
-          progress.setFraction((double)index / psiFiles.size());
-          String text = FindBundle.message("find.searching.for.string.in.file.progress",
-                                           findModel.getStringToFind(), virtualFile.getPresentableUrl());
-          progress.setText(text);
-          progress.setText2(FindBundle.message("find.searching.for.string.in.file.occurrences.progress", count));
+        filesToScan.add(psiFile);
+        fileLengths.put(psiFile, fileLength);
+      }
+
+      // files are searched concurrently, each by a single thread, so at most one file per thread is loaded at a time;
+      // usages are passed to the consumer as soon as they are found, but never concurrently
+      final Processor<UsageInfo> serialConsumer = new Processor<UsageInfo>() {
+        @Override
+        public synchronized boolean process(UsageInfo info) {
+          return consumer.process(info);
         }
+      };
+      final AtomicInteger processed = new AtomicInteger();
+      final AtomicInteger count = new AtomicInteger();
+      final AtomicLong totalFilesSize = new AtomicLong();
+      final AtomicBoolean warningShown = new AtomicBoolean();
+      // the worker which exceeds the size limit stops the search, and the warning is shown on this thread before it goes on
+      final AtomicBoolean stoppedForWarning = new AtomicBoolean();
+      final Set<PsiFile> scannedFiles = Collections.synchronizedSet(new THashSet<PsiFile>());
+
+      Processor<PsiFile> fileProcessor = new Processor<PsiFile>() {
+        @Override
+        public boolean process(PsiFile psiFile) {
+          if (stoppedForWarning.get()) return false;
+          if (progress != null) {
+            progress.checkCanceled();
+            progress.setFraction((double)processed.incrementAndGet() / filesToScan.size());
+            String text = FindBundle.message("find.searching.for.string.in.file.progress",
+                                             findModel.getStringToFind(), psiFile.getVirtualFile().getPresentableUrl());
+            progress.setText(text);
+            progress.setText2(FindBundle.message("find.searching.for.string.in.file.occurrences.progress", count.get()));
+          }
 
-        int countInFile = processUsagesInFile(psiFile, findModel, consumer);
+          int countInFile = processUsagesInFile(psiFile, findModel, serialConsumer);
+          scannedFiles.add(psiFile);
 
-        count += countInFile;
-        if (countInFile > 0) {
-          totalFilesSize += fileLength;
-          if (totalFilesSize > FILES_SIZE_LIMIT && !warningShown[0]) {
-            warningShown[0] = true;
-            String message = FindBundle.message("find.excessive.total.size.prompt", UsageViewManagerImpl.presentableSize(totalFilesSize),
-                                                ApplicationNamesInfo.getInstance().getProductName());
-            UsageLimitUtil.showAndCancelIfAborted(project, message);
+          count.addAndGet(countInFile);
+          if (countInFile > 0) {
+            long size = totalFilesSize.addAndGet(fileLengths.get(psiFile));
+            if (size > FILES_SIZE_LIMIT && warningShown.compareAndSet(false, true)) {
+              stoppedForWarning.set(true);
+              return false;
+            }
           }
+          return true;
         }
+      };
+
+      List<PsiFile> remainingFiles = filesToScan;
+      while (!JobLauncher.getInstance().invokeConcurrentlyUnderProgress(remainingFiles, progress, false, fileProcessor)) {
+        if (!stoppedForWarning.get()) break;
+        String message = FindBundle.message("find.excessive.total.size.prompt", UsageViewManagerImpl.presentableSize(totalFilesSize.get()),
+                                            ApplicationNamesInfo.getInstance().getProductName());
+        UsageLimitUtil.showAndCancelIfAborted(project, message);
+        stoppedForWarning.set(false);
+
+        List<PsiFile> notScanned = new ArrayList<PsiFile>(remainingFiles.size());
+        for (PsiFile file : remainingFiles) {
+          if (!scannedFiles.contains(file)) notScanned.add(file);
+        }
+        remainingFiles = notScanned;
       }
 
-
       if (!largeFiles.isEmpty()) {
         processPresentation.setLargeFilesWereNotScanned(largeFiles);
       }
@@ -443,7 +483,9 @@ public class FindInProjectUtil {
 
     String stringToFind = findModel.getStringToFind();
     if (TrigramIndex.ENABLED) {
-      TIntHashSet trigrams = TrigramBuilder.buildTrigram(stringToFind);
+      TIntHashSet trigrams = findModel.isRegularExpressions()
+                             ? TrigramBuilder.buildRegExpTrigram(stringToFind)
+                             : TrigramBuilder.buildTrigram(stringToFind);
       TIntIterator it = trigrams.iterator();
       while (it.hasNext()) {
         keys.add(it.next());
@@ -459,7 +501,8 @@ public class FindInProjectUtil {
         }
 
         filterMaskedFiles(resultFiles, fileMaskRegExp);
-        if (resultFiles.isEmpty()) return new Pair<Boolean, Collection<PsiFile>>(true, resultFiles);
+        // words of a regular expression are not necessarily present in the text, so the trigrams are all we can rely on
+        if (resultFiles.isEmpty() || findModel.isRegularExpressions()) return new Pair<Boolean, Collection<PsiFile>>(true, resultFiles);
       }
     }
 
@@ -467,7 +510,7 @@ public class FindInProjectUtil {
     // $ is used to separate words when indexing plain-text files but not when indexing
     // Java identifiers, so we can't consistently break a string containing $ characters into words
 
-    fast |= findModel.isWholeWordsOnly() && stringToFind.indexOf('$') < 0;
+    fast |= findModel.isWholeWordsOnly() && stringToFind.indexOf('$') < 0 && !findModel.isRegularExpressions();
 
     List<String> words = StringUtil.getWordsInStringLongestFirst(stringToFind);
 
@@ -531,8 +574,7 @@ public class FindInProjectUtil {
   }
 
   private static boolean canOptimizeForFastWordSearch(@NotNull final FindModel findModel) {
-    return !findModel.isRegularExpressions()
-           && (findModel.getCustomScope() == null || findModel.getCustomScope() instanceof GlobalSearchScope);
+    return findModel.getCustomScope() == null || findModel.getCustomScope() instanceof GlobalSearchScope;
   }
 
   private static int addToUsages(@NotNull Document document, @NotNull Processor<UsageInfo> consumer, @NotNull FindModel findModel,
@@ -32,7 +32,7 @@ import org.jetbrains.annotations.NotNull;
 import java.util.Map;
 
 public class TrigramIndex extends ScalarIndexExtension<Integer> {
-  public static final boolean ENABLED = "true".equals(System.getProperty("idea.internal.trigramindex.enabled"));
+  public static final boolean ENABLED = !"false".equals(System.getProperty("idea.internal.trigramindex.enabled"));
 
   public static final ID<Integer,Void> INDEX_ID = ID.create("Trigram.Index");
 
@@ -62,8 +62,8 @@ public class TrigramIndex extends ScalarIndexExtension<Integer> {
       @Override
       @NotNull
       public Map<Integer, Void> map(FileContent inputData) {
-        final Map<Integer, Void> result = new THashMap<Integer, Void>();
         TIntHashSet built = TrigramBuilder.buildTrigram(inputData.getContentAsText());
+        final Map<Integer, Void> result = new THashMap<Integer, Void>(built.size());
         built.forEach(new TIntProcedure() {
           @Override
           public boolean execute(int value) {
@@ -96,6 +96,11 @@ public class TrigramIndex extends ScalarIndexExtension<Integer> {
     return true;
   }
 
+  @Override
+  public boolean hasSnapshotMapping() {
+    return true;
+  }
+
   @Override
   public int getVersion() {
     return ENABLED ? 2 : 1;
@@ -155,6 +155,11 @@ public class LayeredLexerEditorHighlighter extends LexerEditorHighlighter {
 
   protected boolean updateLayers() { return false; }
 
+  @Override
+  protected boolean isLazyLexingAvailable(@NotNull CharSequence text) {
+    return false; // layer documents are built from all the tokens at once
+  }
+
   @Override
   public void documentChanged(DocumentEvent e) {
     // do NOT synchronize before updateLayers due to deadlock with PsiLock
@@ -0,0 +1,427 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.ide.highlighter.custom.SyntaxTable;
+import com.intellij.lang.Language;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.fileTypes.FileType;
+import com.intellij.openapi.fileTypes.LanguageFileType;
+import com.intellij.openapi.fileTypes.impl.CustomSyntaxTableFileType;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.vfs.CharsetToolkit;
+import com.intellij.psi.LanguageSubstitutors;
+import com.intellij.util.SystemProperties;
+import com.intellij.util.io.*;
+import gnu.trove.THashMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Remembers input maps built by the indexer by the hash of the indexed content, so that files with identical content
+ * (copies of libraries, generated duplicates and so on) are not mapped again and again.
+ * Used for indices whose extensions declare {@link FileBasedIndexExtension#hasSnapshotMapping()}.
+ * <p/>
+ * Most contents are unique, so the first occurrence of a content only marks its hash as seen, and the input map is stored
+ * when the same content is indexed the second time. The mappings are dropped and started anew when they outgrow
+ * {@link #MAX_SIZE} and when the index is cleared for a rebuild. They are looked up by the content hash together with
+ * the version of the index, so input maps built by another version of the indexer are never reused.
+ *
+ * @see #CONTENT_HASH
+ */
+class ContentHashIndexer<K, V> implements DataIndexer<K, V, FileContent> {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.util.indexing.ContentHashIndexer");
+
+  static final boolean ENABLED = SystemProperties.getBooleanProperty("idea.index.share.contents", true);
+  private static final long MAX_SIZE = SystemProperties.getIntProperty("idea.index.share.contents.max.size.mb", 100) * 1024L * 1024L;
+  private static final int SIZE_CHECK_INTERVAL = 1024; // writes
+  private static final int STRIPE_COUNT = 16;
+  @SuppressWarnings("unchecked")
+  private static final Map SEEN_ONCE = Collections.unmodifiableMap(new HashMap());
+
+  /**
+   * Hash of the raw file content together with everything besides the content the indexers are allowed to depend on:
+   * the file type and the syntax table of a custom one, the substituted language and the charset.
+   * Set only for contents loaded from files, not from documents.
+   */
+  static final Key<byte[]> CONTENT_HASH = Key.create("index content hash");
+
+  private final String myName;
+  private final int myVersion;
+  private final DataIndexer<K, V, FileContent> myDelegate;
+  private final File myFile;
+  private final InputMapExternalizer<K, V> myExternalizer;
+  private final long myMaxSize;
+  // lookups and updates of a hash are done under its stripe lock, replacing or closing the mappings under all of them
+  private final Lock[] myStripeLocks = new Lock[STRIPE_COUNT];
+  private volatile PersistentHashMap<byte[], Map<K, V>> myMappings;
+  private final AtomicInteger myWriteCount = new AtomicInteger();
+  private final AtomicInteger myInputs = new AtomicInteger();
+  private final AtomicInteger myShared = new AtomicInteger();
+
+  ContentHashIndexer(@NotNull FileBasedIndexExtension<K, V> extension) throws IOException {
+    this(extension.getName().toString(), extension.getVersion(), extension.getIndexer(), extension.getKeyDescriptor(),
+         extension.getValueExternalizer(), new File(IndexInfrastructure.getIndexRootDir(extension.getName()), extension.getName() + "_snapshots"), MAX_SIZE);
+  }
+
+  ContentHashIndexer(@NotNull String name,
+                     int version,
+                     @NotNull DataIndexer<K, V, FileContent> delegate,
+                     @NotNull KeyDescriptor<K> keyDescriptor,
+                     @NotNull DataExternalizer<V> valueExternalizer,
+                     @NotNull File file,
+                     long maxSize) throws IOException {
+    myName = name;
+    myVersion = version;
+    myDelegate = delegate;
+    myFile = file;
+    myExternalizer = new InputMapExternalizer<K, V>(keyDescriptor, valueExternalizer);
+    myMaxSize = maxSize;
+    for (int i = 0; i < myStripeLocks.length; i++) {
+      myStripeLocks[i] = new ReentrantLock();
+    }
+    try {
+      myMappings = createMappings();
+    }
+    catch (IOException e) {
+      LOG.info(e);
+      IOUtil.deleteAllFilesStartingWith(file);
+      myMappings = createMappings();
+    }
+  }
+
+  @NotNull
+  private PersistentHashMap<byte[], Map<K, V>> createMappings() throws IOException {
+    return new PersistentHashMap<byte[], Map<K, V>>(myFile, HashKeyDescriptor.INSTANCE, myExternalizer);
+  }
+
+  @Override
+  @NotNull
+  public Map<K, V> map(FileContent inputData) {
+    final byte[] contentHash = inputData.getUserData(CONTENT_HASH);
+    if (contentHash == null) {
+      return myDelegate.map(inputData);
+    }
+    final byte[] hash = withVersion(contentHash);
+
+    myInputs.incrementAndGet();
+    final Map<K, V> stored = read(hash);
+    if (stored != null && stored != SEEN_ONCE) {
+      myShared.incrementAndGet();
+      return stored;
+    }
+
+    final Map<K, V> data = myDelegate.map(inputData);
+    write(hash, stored == null ? ContentHashIndexer.<K, V>seenOnce() : data);
+    return data;
+  }
+
+  @NotNull
+  private byte[] withVersion(@NotNull byte[] contentHash) {
+    final byte[] hash = Arrays.copyOf(contentHash, contentHash.length + 4);
+    for (int i = 0; i < 4; i++) {
+      hash[contentHash.length + i] = (byte)(myVersion >>> (i * 8));
+    }
+    return hash;
+  }
+
+  @SuppressWarnings("unchecked")
+  @NotNull
+  private static <K, V> Map<K, V> seenOnce() {
+    return SEEN_ONCE;
+  }
+
+  @NotNull
+  private Lock getStripeLock(@NotNull byte[] hash) {
+    return myStripeLocks[(hash[0] & 0xff) % STRIPE_COUNT];
+  }
+
+  @Nullable
+  private Map<K, V> read(@NotNull byte[] hash) {
+    final Lock lock = getStripeLock(hash);
+    lock.lock();
+    try {
+      final PersistentHashMap<byte[], Map<K, V>> mappings = myMappings;
+      return mappings != null ? mappings.get(hash) : null;
+    }
+    catch (IOException e) {
+      dropMappings(e);
+      return null;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  private void write(@NotNull byte[] hash, @NotNull Map<K, V> data) {
+    final Lock lock = getStripeLock(hash);
+    lock.lock();
+    try {
+      final PersistentHashMap<byte[], Map<K, V>> mappings = myMappings;
+      if (mappings == null) return;
+      // the input map of the content could have been stored meanwhile
+      if (data == SEEN_ONCE && mappings.containsMapping(hash)) return;
+      mappings.put(hash, data);
+    }
+    catch (IOException e) {
+      dropMappings(e);
+      return;
+    }
+    finally {
+      lock.unlock();
+    }
+
+    if (myWriteCount.incrementAndGet() % SIZE_CHECK_INTERVAL == 0) {
+      checkSize();
+    }
+  }
+
+  private void checkSize() {
+    if (new File(myFile.getParentFile(), myFile.getName() + PersistentHashMap.DATA_FILE_EXTENSION).length() <= myMaxSize) return;
+    LOG.info("Content hash mappings of " + myName + " exceeded " + myMaxSize / 1024 / 1024 + " MB and are recreated");
+    recreateMappings();
+  }
+
+  /**
+   * Called when the index is cleared, so that its rebuild runs the indexer on every content again.
+   */
+  void clear() {
+    recreateMappings();
+  }
+
+  private void recreateMappings() {
+    lockAllStripes();
+    try {
+      final PersistentHashMap<byte[], Map<K, V>> mappings = myMappings;
+      if (mappings != null) {
+        myMappings = null;
+        closeAndDelete(mappings);
+      }
+      else {
+        // the mappings may have been dropped after an error, and their files left behind
+        IOUtil.deleteAllFilesStartingWith(myFile);
+      }
+      myMappings = createMappings();
+    }
+    catch (IOException e) {
+      LOG.info(e);
+    }
+    finally {
+      unlockAllStripes();
+    }
+  }
+
+  private void dropMappings(@NotNull IOException e) {
+    // the mappings are a cache only, so the index keeps working without them
+    LOG.info("Content hash mappings of " + myName + " are broken and will be recreated on restart", e);
+    lockAllStripes();
+    try {
+      final PersistentHashMap<byte[], Map<K, V>> mappings = myMappings;
+      if (mappings == null) return;
+      myMappings = null;
+      closeAndDelete(mappings);
+    }
+    finally {
+      unlockAllStripes();
+    }
+  }
+
+  private static void closeAndDelete(@NotNull PersistentHashMap<byte[], ?> mappings) {
+    try {
+      mappings.close();
+    }
+    catch (IOException ignored) {
+    }
+    IOUtil.deleteAllFilesStartingWith(mappings.getBaseFile());
+  }
+
+  private void lockAllStripes() {
+    for (Lock lock : myStripeLocks) {
+      lock.lock();
+    }
+  }
+
+  private void unlockAllStripes() {
+    for (int i = myStripeLocks.length - 1; i >= 0; i--) {
+      myStripeLocks[i].unlock();
+    }
+  }
+
+  void force() {
+    lockAllStripes();
+    try {
+      final PersistentHashMap<byte[], Map<K, V>> mappings = myMappings;
+      if (mappings != null && mappings.isDirty()) {
+        mappings.force();
+      }
+    }
+    finally {
+      unlockAllStripes();
+    }
+  }
+
+  void dispose() {
+    if (myInputs.get() > 0) {
+      LOG.info(myName + ": " + myShared.get() + " of " + myInputs.get() + " inputs were mapped by content hash");
+    }
+    lockAllStripes();
+    try {
+      final PersistentHashMap<byte[], Map<K, V>> mappings = myMappings;
+      if (mappings != null) {
+        myMappings = null;
+        mappings.close();
+      }
+    }
+    catch (IOException e) {
+      LOG.info(e);
+    }
+    finally {
+      unlockAllStripes();
+    }
+  }
+
+  @NotNull
+  static byte[] calculateHash(@NotNull FileContentImpl fc, @Nullable Project project) {
+    final FileType fileType = fc.getFileType();
+    Language language = null;
+    if (fileType instanceof LanguageFileType && project != null) {
+      language = LanguageSubstitutors.INSTANCE.substituteLanguage(((LanguageFileType)fileType).getLanguage(), fc.getFile(), project);
+    }
+    return calculateHash(fc.getContent(), fileType, language, fc.getCharset());
+  }
+
+  @NotNull
+  static byte[] calculateHash(@NotNull byte[] content, @NotNull FileType fileType, @Nullable Language language, @Nullable Charset charset) {
+    final MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA1");
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+    digest.update(fileType.getName().getBytes(CharsetToolkit.UTF8_CHARSET));
+    digest.update((byte)0);
+    if (fileType instanceof CustomSyntaxTableFileType) {
+      // the words of custom file types are found by their syntax tables, which the user may change
+      updateDigest(digest, ((CustomSyntaxTableFileType)fileType).getSyntaxTable());
+    }
+    digest.update((byte)0);
+    if (language != null) {
+      digest.update(language.getID().getBytes(CharsetToolkit.UTF8_CHARSET));
+    }
+    digest.update((byte)0);
+    if (charset != null) {
+      digest.update(charset.name().getBytes(CharsetToolkit.UTF8_CHARSET));
+    }
+    digest.update((byte)0);
+    digest.update(content);
+    return digest.digest();
+  }
+
+  private static void updateDigest(@NotNull MessageDigest digest, @Nullable SyntaxTable table) {
+    if (table == null) return;
+    final StringBuilder builder = new StringBuilder();
+    for (Set<String> keywords : Arrays.asList(table.getKeywords1(), table.getKeywords2(), table.getKeywords3(), table.getKeywords4())) {
+      final List<String> sorted = new ArrayList<String>(keywords);
+      Collections.sort(sorted);
+      for (String keyword : sorted) {
+        builder.append(keyword).append('\n');
+      }
+      builder.append('\0');
+    }
+    builder.append(table.getLineComment()).append('\0').append(table.lineCommentOnlyAtStart).append('\0');
+    builder.append(table.getStartComment()).append('\0').append(table.getEndComment()).append('\0');
+    builder.append(table.getHexPrefix()).append('\0').append(table.getNumPostfixChars()).append('\0');
+    builder.append(table.isIgnoreCase()).append(table.isHasBraces()).append(table.isHasBrackets()).append(table.isHasParens())
+      .append(table.isHasStringEscapes());
+    digest.update(builder.toString().getBytes(CharsetToolkit.UTF8_CHARSET));
+  }
+
+  private static class HashKeyDescriptor implements KeyDescriptor<byte[]> {
+    private static final HashKeyDescriptor INSTANCE = new HashKeyDescriptor();
+
+    @Override
+    public int getHashCode(byte[] value) {
+      return Arrays.hashCode(value);
+    }
+
+    @Override
+    public boolean isEqual(byte[] val1, byte[] val2) {
+      return Arrays.equals(val1, val2);
+    }
+
+    @Override
+    public void save(DataOutput out, byte[] value) throws IOException {
+      DataInputOutputUtil.writeINT(out, value.length);
+      out.write(value);
+    }
+
+    @Override
+    public byte[] read(DataInput in) throws IOException {
+      final byte[] value = new byte[DataInputOutputUtil.readINT(in)];
+      in.readFully(value);
+      return value;
+    }
+  }
+
+  private static class InputMapExternalizer<K, V> implements DataExternalizer<Map<K, V>> {
+    private final KeyDescriptor<K> myKeyDescriptor;
+    private final DataExternalizer<V> myValueExternalizer;
+
+    private InputMapExternalizer(@NotNull KeyDescriptor<K> keyDescriptor, @NotNull DataExternalizer<V> valueExternalizer) {
+      myKeyDescriptor = keyDescriptor;
+      myValueExternalizer = valueExternalizer;
+    }
+
+    @Override
+    public void save(DataOutput out, Map<K, V> value) throws IOException {
+      if (value == SEEN_ONCE) {
+        DataInputOutputUtil.writeINT(out, 0);
+        return;
+      }
+      DataInputOutputUtil.writeINT(out, value.size() + 1);
+      for (Map.Entry<K, V> entry : value.entrySet()) {
+        myKeyDescriptor.save(out, entry.getKey());
+        myValueExternalizer.save(out, entry.getValue());
+      }
+    }
+
+    @Override
+    public Map<K, V> read(DataInput in) throws IOException {
+      final int size = DataInputOutputUtil.readINT(in) - 1;
+      if (size < 0) return seenOnce();
+      final Map<K, V> map = new THashMap<K, V>(size);
+      for (int i = 0; i < size; i++) {
+        final K key = myKeyDescriptor.read(in);
+        map.put(key, myValueExternalizer.read(in));
+      }
+      return map;
+    }
+  }
+}
@@ -94,6 +94,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
   private static final Logger LOG = Logger.getInstance("#com.intellij.util.indexing.FileBasedIndexImpl");
   @NonNls
   private static final String CORRUPTION_MARKER_NAME = "corruption.marker";
+  private final Map<ID<?, ?>, ContentHashIndexer<?, ?>> myContentHashIndexers = ContainerUtil.newConcurrentMap();
   private final Map<ID<?, ?>, Pair<UpdatableIndex<?, ?, FileContent>, InputFilter>> myIndices =
     new THashMap<ID<?, ?>, Pair<UpdatableIndex<?, ?, FileContent>, InputFilter>>();
   private final Map<ID<?, ?>, Semaphore> myUnsavedDataIndexingSemaphores = new THashMap<ID<?, ?>, Semaphore>();
@@ -120,6 +121,8 @@ public class FileBasedIndexImpl extends FileBasedIndex {
   private final Map<Document, PsiFile> myTransactionMap = new THashMap<Document, PsiFile>();
 
   private static final int ALREADY_PROCESSED = 0x04000000;
+  // compact index storages full of garbage while the IDE is idle instead of on the next start
+  private static final boolean ourBackgroundCompaction = SystemProperties.getBooleanProperty("idea.indices.background.compaction", true);
 
   @Nullable private final String myConfigPath;
   @Nullable private final String myLogPath;
@@ -500,7 +503,13 @@ public class FileBasedIndexImpl extends FileBasedIndex {
       index = (MapReduceIndex<K, V, FileContent>)custom;
     }
     else {
-      index = new MapReduceIndex<K, V, FileContent>(indexId, extension.getIndexer(), storage);
+      DataIndexer<K, V, FileContent> indexer = extension.getIndexer();
+      if (ContentHashIndexer.ENABLED && extension.hasSnapshotMapping()) {
+        final ContentHashIndexer<K, V> contentHashIndexer = new ContentHashIndexer<K, V>(extension);
+        myContentHashIndexers.put(indexId, contentHashIndexer);
+        indexer = contentHashIndexer;
+      }
+      index = new MapReduceIndex<K, V, FileContent>(indexId, indexer, storage);
     }
 
     final KeyDescriptor<K> keyDescriptor = extension.getKeyDescriptor();
@@ -675,6 +684,9 @@ public class FileBasedIndexImpl extends FileBasedIndex {
           checkRebuild(indexId, true); // if the index was scheduled for rebuild, only clean it
           index.dispose();
         }
+        for (ContentHashIndexer<?, ?> contentHashIndexer : myContentHashIndexers.values()) {
+          contentHashIndexer.dispose();
+        }
 
         myVfManager.removeVirtualFileListener(myChangedFilesCollector);
 
@@ -700,6 +712,9 @@ public class FileBasedIndexImpl extends FileBasedIndex {
         final UpdatableIndex<?, ?, FileContent> index = getIndex(indexId);
         if (index != null) {
           index.flush();
+          if (ourBackgroundCompaction) {
+            compactIfNecessary(indexId, index, modCount);
+          }
         }
       }
       catch (StorageException e) {
@@ -710,6 +725,29 @@ public class FileBasedIndexImpl extends FileBasedIndex {
 
     if (!HeavyProcessLatch.INSTANCE.isRunning() && modCount == myLocalModCount) { // do not interfere with 'main' jobs
       SerializationManagerEx.getInstanceEx().flushNameStorage();
+      for (ContentHashIndexer<?, ?> contentHashIndexer : myContentHashIndexers.values()) {
+        contentHashIndexer.force();
+      }
+    }
+  }
+
+  private void compactIfNecessary(@NotNull ID<?, ?> indexId, @NotNull UpdatableIndex<?, ?, FileContent> index, final long modCount)
+    throws StorageException {
+    if (!(index instanceof MapReduceIndex)) return;
+    IndexStorage<?, ?> storage = ((MapReduceIndex<?, ?, FileContent>)index).getStorage();
+    if (storage instanceof MemoryIndexStorage) {
+      storage = ((MemoryIndexStorage<?, ?>)storage).getBackendStorage();
+    }
+    if (!(storage instanceof MapIndexStorage)) return;
+
+    final boolean compacted = ((MapIndexStorage<?, ?>)storage).compactIfNecessary(new PersistentHashMap.CompactionCondition() {
+      @Override
+      public boolean shouldContinue() {
+        return !HeavyProcessLatch.INSTANCE.isRunning() && modCount == myLocalModCount; // do not interfere with 'main' jobs
+      }
+    });
+    if (compacted) {
+      LOG.info("Compacted storage of index " + indexId);
     }
   }
 
@@ -1204,34 +1242,32 @@ public class FileBasedIndexImpl extends FileBasedIndex {
 
       try {
         index.getReadLock().lock();
-        final List<TIntHashSet> locals = new ArrayList<TIntHashSet>();
+        final List<ValueContainer<V>> containers = new ArrayList<ValueContainer<V>>(dataKeys.size());
         for (K dataKey : dataKeys) {
-          TIntHashSet local = new TIntHashSet();
-          locals.add(local);
           final ValueContainer<V> container = index.getData(dataKey);
-
-          for (final Iterator<V> valueIt = container.getValueIterator(); valueIt.hasNext(); ) {
-            final V value = valueIt.next();
-            for (final ValueContainer.IntIterator inputIdsIterator = container.getInputIdsIterator(value); inputIdsIterator.hasNext(); ) {
-              final int id = inputIdsIterator.next();
-              local.add(id);
-            }
+          if (container.size() == 0) {
+            return true; // no file contains all the keys
           }
+          containers.add(container);
         }
 
-        if (locals.isEmpty()) {
+        if (containers.isEmpty()) {
           return true;
         }
 
-        Collections.sort(locals, new Comparator<TIntHashSet>() {
+        final TObjectIntHashMap<ValueContainer<V>> idCounts = new TObjectIntHashMap<ValueContainer<V>>(containers.size());
+        for (ValueContainer<V> container : containers) {
+          idCounts.put(container, countInputIds(container));
+        }
+        Collections.sort(containers, new Comparator<ValueContainer<V>>() {
           @Override
-          public int compare(TIntHashSet o1, TIntHashSet o2) {
-            return o1.size() - o2.size();
+          public int compare(ValueContainer<V> o1, ValueContainer<V> o2) {
+            return idCounts.get(o1) - idCounts.get(o2);
           }
         });
 
         final PersistentFS fs = (PersistentFS)ManagingFS.getInstance();
-        TIntIterator ids = join(locals).iterator();
+        TIntIterator ids = join(containers).iterator();
         ProjectIndexableFilesFilter projectIndexableFilesFilter = projectIndexableFiles(project);
         while (ids.hasNext()) {
           int id = ids.next();
@@ -1264,25 +1300,52 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     return true;
   }
 
+  private static <V> int countInputIds(@NotNull ValueContainer<V> container) {
+    int count = 0;
+    for (final Iterator<V> valueIt = container.getValueIterator(); valueIt.hasNext(); ) {
+      count += container.getInputIdsIterator(valueIt.next()).size();
+    }
+    return count;
+  }
+
+  /**
+   * Intersects input ids of the containers sorted by the number of ids: only the ids of the first (the smallest) container are collected,
+   * the others are probed with their association predicates, so long posting lists of common keys are never copied.
+   */
   @NotNull
-  private static TIntHashSet join(@NotNull List<TIntHashSet> locals) {
-    TIntHashSet result = locals.get(0);
-    if (locals.size() > 1) {
-      TIntIterator it = result.iterator();
+  private static <V> TIntHashSet join(@NotNull List<ValueContainer<V>> containers) {
+    final ValueContainer<V> first = containers.get(0);
+    final TIntHashSet result = new TIntHashSet(countInputIds(first));
+    for (final Iterator<V> valueIt = first.getValueIterator(); valueIt.hasNext(); ) {
+      for (final ValueContainer.IntIterator inputIdsIterator = first.getInputIdsIterator(valueIt.next()); inputIdsIterator.hasNext(); ) {
+        result.add(inputIdsIterator.next());
+      }
+    }
 
+    for (int i = 1; i < containers.size() && !result.isEmpty(); i++) {
+      final ValueContainer<V> container = containers.get(i);
+      final List<ValueContainer.IntPredicate> predicates = new SmartList<ValueContainer.IntPredicate>();
+      for (final Iterator<V> valueIt = container.getValueIterator(); valueIt.hasNext(); ) {
+        predicates.add(container.getValueAssociationPredicate(valueIt.next()));
+      }
+
+      TIntIterator it = result.iterator();
       while (it.hasNext()) {
-        int id = it.next();
-        for (int i = 1; i < locals.size(); i++) {
-          if (!locals.get(i).contains(id)) {
-            it.remove();
-            break;
-          }
+        if (!containsId(predicates, it.next())) {
+          it.remove();
         }
       }
     }
     return result;
   }
 
+  private static boolean containsId(@NotNull List<ValueContainer.IntPredicate> predicates, int id) {
+    for (ValueContainer.IntPredicate predicate : predicates) {
+      if (predicate.contains(id)) return true;
+    }
+    return false;
+  }
+
   @Override
   public <K> void scheduleRebuild(@NotNull final ID<K, ?> indexId, @NotNull final Throwable e) {
     requestRebuild(indexId, new Throwable(e));
@@ -1363,6 +1426,10 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     final UpdatableIndex<?, ?, FileContent> index = getIndex(indexId);
     assert index != null : "Index with key " + indexId + " not found or not registered properly";
     index.clear();
+    final ContentHashIndexer<?, ?> contentHashIndexer = myContentHashIndexers.get(indexId);
+    if (contentHashIndexer != null) {
+      contentHashIndexer.clear();
+    }
     try {
       IndexInfrastructure.rewriteVersion(IndexInfrastructure.getVersionFile(indexId), myIndexIdToVersionMap.get(indexId));
     }
@@ -1659,6 +1726,8 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     final VirtualFile file = content.getVirtualFile();
 
     FileTypeManagerImpl.cacheFileType(file, file.getFileType());
+    // the indexing stamps of all updated indices are written in a single read action
+    final List<ID<?, ?>> updatedIndices = new ArrayList<ID<?, ?>>();
     try {
       PsiFile psiFile = null;
       FileContentImpl fc = null;
@@ -1680,10 +1749,16 @@ public class FileBasedIndexImpl extends FileBasedIndex {
             psiFile = content.getUserData(IndexingDataKeys.PSI_FILE);
             initFileContent(fc, project, psiFile);
           }
+          // hashed only when an index which can use the hash accepts the file
+          if (myContentHashIndexers.containsKey(indexId) && fc.getUserData(ContentHashIndexer.CONTENT_HASH) == null) {
+            fc.putUserData(ContentHashIndexer.CONTENT_HASH, ContentHashIndexer.calculateHash(fc, project));
+          }
 
           try {
             ProgressManager.checkCanceled();
-            updateSingleIndex(indexId, file, fc);
+            if (updateIndexData(indexId, file, fc)) {
+              updatedIndices.add(indexId);
+            }
           }
           catch (ProcessCanceledException e) {
             cleanFileContent(fc, psiFile);
@@ -1701,6 +1776,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
       }
     }
     finally {
+      updateIndexingStamps(file, updatedIndices, true);
       FileTypeManagerImpl.cacheFileType(file, null);
     }
   }
@@ -1720,9 +1796,20 @@ public class FileBasedIndexImpl extends FileBasedIndex {
   }
 
   private void updateSingleIndex(final ID<?, ?> indexId, @NotNull final VirtualFile file, @Nullable final FileContent currentFC)
+    throws StorageException {
+    if (updateIndexData(indexId, file, currentFC)) {
+      updateIndexingStamps(file, Collections.<ID<?, ?>>singletonList(indexId), currentFC != null);
+    }
+  }
+
+  /**
+   * Data buffering is disabled only for the index update itself, so that entrants which need it enabled don't wait for other indices.
+   * @return false if the index is scheduled for rebuild and was not updated
+   */
+  private boolean updateIndexData(final ID<?, ?> indexId, @NotNull final VirtualFile file, @Nullable final FileContent currentFC)
     throws StorageException {
     if (ourRebuildStatus.get(indexId).get() == REQUIRES_REBUILD) {
-      return; // the index is scheduled for rebuild, no need to update
+      return false; // the index is scheduled for rebuild, no need to update
     }
     myLocalModCount++;
 
@@ -1737,17 +1824,23 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     finally {
       lock.leave();
     }
+    return true;
+  }
 
+  private static void updateIndexingStamps(@NotNull final VirtualFile file, @NotNull final List<ID<?, ?>> indexIds, final boolean indexed) {
+    if (indexIds.isEmpty()) return;
     ApplicationManager.getApplication().runReadAction(new Runnable() {
       @Override
       public void run() {
         if (file.isValid()) {
-          if (currentFC != null) {
-            IndexingStamp.update(file, indexId, IndexInfrastructure.getIndexCreationStamp(indexId));
-          }
-          else {
-            // mark the file as unindexed
-            IndexingStamp.update(file, indexId, IndexInfrastructure.INVALID_STAMP);
+          for (ID<?, ?> indexId : indexIds) {
+            if (indexed) {
+              IndexingStamp.update(file, indexId, IndexInfrastructure.getIndexCreationStamp(indexId));
+            }
+            else {
+              // mark the file as unindexed
+              IndexingStamp.update(file, indexId, IndexInfrastructure.INVALID_STAMP);
+            }
           }
         }
       }
@@ -21,9 +21,11 @@ import com.intellij.openapi.util.LowMemoryWatcher;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.CommonProcessors;
 import com.intellij.util.Processor;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.containers.SLRUCache;
 import com.intellij.util.io.DataExternalizer;
 import com.intellij.util.io.KeyDescriptor;
+import com.intellij.util.io.PersistentHashMap;
 import com.intellij.util.io.PersistentMap;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -42,26 +44,33 @@ import java.util.concurrent.locks.ReentrantLock;
 */
 public final class MapIndexStorage<Key, Value> implements IndexStorage<Key, Value>{
   private static final Logger LOG = Logger.getInstance("#com.intellij.util.indexing.MapIndexStorage");
+  // the cache is partitioned by key hash so that lookups of unrelated keys under the shared index read lock do not contend
+  // on a single lock; writers are still serialized by the index write lock, see MapReduceIndex#updateWithMap
+  private static final int STRIPE_COUNT = Integer.highestOneBit(
+    Math.max(1, SystemProperties.getIntProperty("idea.index.storage.stripes", Runtime.getRuntime().availableProcessors()))
+  );
+  private static final int MIN_STRIPE_CACHE_SIZE = 16;
+
   private PersistentMap<Key, ValueContainer<Value>> myMap;
-  private SLRUCache<Key, ChangeTrackingValueContainer<Value>> myCache;
+  private SLRUCache<Key, ChangeTrackingValueContainer<Value>>[] myCaches;
   private final File myStorageFile;
   private final KeyDescriptor<Key> myKeyDescriptor;
   private final int myCacheSize;
 
-  private final Lock l = new ReentrantLock();
+  private final Lock[] myStripeLocks;
   private final DataExternalizer<Value> myDataExternalizer;
   private boolean myHighKeySelectivity;
   private final LowMemoryWatcher myLowMemoryFlusher = LowMemoryWatcher.register(new Runnable() {
     @Override
     public void run() {
-      l.lock();
+      lockAllStripes();
       try {
         if (!myMap.isClosed()) {
-          myCache.clear();
+          clearCaches();
           if (myMap.isDirty()) myMap.force();
         }
       } finally {
-        l.unlock();
+        unlockAllStripes();
       }
     }
   });
@@ -85,12 +94,28 @@ public final class MapIndexStorage<Key, Value> implements IndexStorage<Key, Valu
     myCacheSize = cacheSize;
     myDataExternalizer = valueExternalizer;
     myHighKeySelectivity = highKeySelectivity;
+    myStripeLocks = new Lock[STRIPE_COUNT];
+    for (int i = 0; i < myStripeLocks.length; i++) {
+      myStripeLocks[i] = new ReentrantLock();
+    }
     initMapAndCache();
   }
 
   private void initMapAndCache() throws IOException {
     final ValueContainerMap<Key, Value> map = new ValueContainerMap<Key, Value>(myStorageFile, myKeyDescriptor, myDataExternalizer);
-    myCache = new SLRUCache<Key, ChangeTrackingValueContainer<Value>>(myCacheSize, (int)(Math.ceil(myCacheSize * 0.25)) /* 25% from the main cache size*/) {
+    final int stripeCacheSize = Math.max(MIN_STRIPE_CACHE_SIZE, myCacheSize / STRIPE_COUNT);
+    //noinspection unchecked
+    final SLRUCache<Key, ChangeTrackingValueContainer<Value>>[] caches = new SLRUCache[STRIPE_COUNT];
+    for (int i = 0; i < caches.length; i++) {
+      caches[i] = createCache(map, stripeCacheSize);
+    }
+    myCaches = caches;
+    myMap = map;
+  }
+
+  @NotNull
+  private SLRUCache<Key, ChangeTrackingValueContainer<Value>> createCache(@NotNull final ValueContainerMap<Key, Value> map, int cacheSize) {
+    return new SLRUCache<Key, ChangeTrackingValueContainer<Value>>(cacheSize, (int)(Math.ceil(cacheSize * 0.25)) /* 25% from the main cache size*/) {
       @Override
       @NotNull
       public ChangeTrackingValueContainer<Value> createValue(final Key key) {
@@ -131,21 +156,61 @@ public final class MapIndexStorage<Key, Value> implements IndexStorage<Key, Valu
         }
       }
     };
+  }
 
-    myMap = map;
+  private int getStripe(Key key) {
+    final int h = myKeyDescriptor.getHashCode(key);
+    return (h ^ (h >>> 16)) & (STRIPE_COUNT - 1);
+  }
+
+  private void lockAllStripes() {
+    for (Lock lock : myStripeLocks) {
+      lock.lock();
+    }
+  }
+
+  private void unlockAllStripes() {
+    for (int i = myStripeLocks.length - 1; i >= 0; i--) {
+      myStripeLocks[i].unlock();
+    }
+  }
+
+  // should be called under all stripe locks
+  private void clearCaches() {
+    for (SLRUCache<Key, ChangeTrackingValueContainer<Value>> cache : myCaches) {
+      cache.clear();
+    }
   }
 
   @Override
   public void flush() {
-    l.lock();
+    lockAllStripes();
     try {
       if (!myMap.isClosed() && myMap.isDirty()) {
-        myCache.clear();
+        clearCaches();
         myMap.force();
       }
     }
     finally {
-      l.unlock();
+      unlockAllStripes();
+    }
+  }
+
+  /**
+   * Compacts the value storage if it contains too much garbage. The storage stays usable while the values are copied,
+   * see {@link PersistentHashMap#compactIfNecessary(PersistentHashMap.CompactionCondition)}.
+   * @return true if the storage was compacted
+   */
+  public boolean compactIfNecessary(@NotNull PersistentHashMap.CompactionCondition condition) throws StorageException {
+    final PersistentMap<Key, ValueContainer<Value>> map = myMap;
+    if (map.isClosed() || !(map instanceof PersistentHashMap)) {
+      return false;
+    }
+    try {
+      return ((PersistentHashMap)map).compactIfNecessary(condition);
+    }
+    catch (IOException e) {
+      throw new StorageException(e);
     }
   }
 
@@ -200,9 +265,9 @@ public final class MapIndexStorage<Key, Value> implements IndexStorage<Key, Valu
 
   @Override
   public boolean processKeys(final Processor<Key> processor) throws StorageException {
-    l.lock();
+    lockAllStripes();
     try {
-      myCache.clear(); // this will ensure that all new keys are made into the map
+      clearCaches(); // this will ensure that all new keys are made into the map
       return myMap.processKeys(processor);
     }
     catch (IOException e) {
@@ -219,7 +284,7 @@ public final class MapIndexStorage<Key, Value> implements IndexStorage<Key, Valu
       throw e;
     }
     finally {
-      l.unlock();
+      unlockAllStripes();
     }
   }
 
@@ -234,9 +299,11 @@ public final class MapIndexStorage<Key, Value> implements IndexStorage<Key, Valu
   @Override
   @NotNull
   public ChangeTrackingValueContainer<Value> read(final Key key) throws StorageException {
-    l.lock();
+    final int stripe = getStripe(key);
+    final Lock lock = myStripeLocks[stripe];
+    lock.lock();
     try {
-      return myCache.get(key);
+      return myCaches[stripe].get(key);
     }
     catch (RuntimeException e) {
       final Throwable cause = e.getCause();
@@ -249,7 +316,7 @@ public final class MapIndexStorage<Key, Value> implements IndexStorage<Key, Valu
       throw e;
     }
     finally {
-      l.unlock();
+      lock.unlock();
     }
   }
 
@@ -262,12 +329,14 @@ public final class MapIndexStorage<Key, Value> implements IndexStorage<Key, Valu
         return;
       }
 
+      final int stripe = getStripe(key);
       ChangeTrackingValueContainer<Value> cached;
+      final Lock lock = myStripeLocks[stripe];
       try {
-        l.lock();
-        cached = myCache.getIfCached(key);
+        lock.lock();
+        cached = myCaches[stripe].getIfCached(key);
       } finally {
-        l.unlock();
+        lock.unlock();
       }
 
       if (cached != null) {
@@ -242,6 +242,8 @@ public class MapReduceIndex<Key, Value, Input> implements UpdatableIndex<Key,Val
   }
 
   protected void updateWithMap(final int inputId, @NotNull Map<Key, Value> newData, @NotNull Callable<Collection<Key>> oldKeysGetter) throws StorageException {
+    // updates stay serialized on the index write lock: readers process the value containers of the storage in place,
+    // and neither those containers nor MemoryIndexStorage support concurrent mutation
     getWriteLock().lock();
     try {
       try {
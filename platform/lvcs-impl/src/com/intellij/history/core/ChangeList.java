@@ -35,6 +35,7 @@ public class ChangeList {
 
   private int myChangeSetDepth;
   private ChangeSet myCurrentChangeSet;
+  private int myPurgeCount;
 
   private int myIntervalBetweenActivities = 12 * 60 * 60 * 1000; // 12 hours
 
@@ -118,6 +119,7 @@ public class ChangeList {
       public Iterator<ChangeSet> iterator() {
         return new Iterator<ChangeSet>() {
           private final TIntHashSet recursionGuard = new TIntHashSet(1000);
+          private int purgeCount = myPurgeCount;
 
           private ChangeSetHolder currentBlock;
           private ChangeSet next = fetchNext();
@@ -145,7 +147,17 @@ public class ChangeList {
             }
             else {
               synchronized (ChangeList.this) {
-                currentBlock = myStorage.readPrevious(currentBlock.id, recursionGuard);
+                if (purgeCount == myPurgeCount) {
+                  currentBlock = myStorage.readPrevious(currentBlock.id, recursionGuard);
+                }
+                else {
+                  // the purge may have deleted the current block, and its record may hold a newer change set by now
+                  purgeCount = myPurgeCount;
+                  recursionGuard.clear();
+                  ChangeSetHolder prevBlock = myStorage.readPrevious(currentBlock.id, recursionGuard);
+                  boolean older = prevBlock != null && prevBlock.changeSet.getId() < currentBlock.changeSet.getId();
+                  currentBlock = older ? prevBlock : null;
+                }
               }
             }
             if (currentBlock == null) return null;
@@ -172,6 +184,7 @@ public class ChangeList {
   }
 
   public synchronized void purgeObsolete(long period) {
+    myPurgeCount++;
     myStorage.purge(period, myIntervalBetweenActivities, new Consumer<ChangeSet>() {
       public void consume(ChangeSet changeSet) {
         for (Content each : changeSet.getContentsToPurge()) {
@@ -33,6 +33,7 @@ import com.intellij.util.io.storage.AbstractStorage;
 import gnu.trove.TIntHashSet;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
 
 import javax.swing.event.HyperlinkEvent;
 import java.io.DataInputStream;
@@ -44,10 +45,18 @@ import java.text.MessageFormat;
 public class ChangeListStorageImpl implements ChangeListStorage {
   private static final int VERSION = 5;
   private static final String STORAGE_FILE = "changes";
+  // the purge blocks all changes to the local history, so it runs in short slices; obsolete blocks left after the time is out
+  // are purged next time
+  private static final long PURGE_TIME_LIMIT = 200;
+  private static long ourPurgeTimeLimit = PURGE_TIME_LIMIT;
 
   private final File myStorageDir;
   private LocalHistoryStorage myStorage;
   private long myLastId;
+  // the last obsolete block of an unfinished purge and the parameters it was found with, so that the next purge goes on without looking for it
+  private int myPendingObsoleteId;
+  private long myPendingPeriod;
+  private int myPendingIntervalBetweenActivities;
 
   private boolean isCompletelyBroken = false;
 
@@ -83,6 +92,7 @@ public class ChangeListStorageImpl implements ChangeListStorage {
 
     myLastId = result.getLastId();
     myStorage = result;
+    myPendingObsoleteId = 0;
   }
 
   private static long getVFSTimestamp() {
@@ -226,19 +236,39 @@ public class ChangeListStorageImpl implements ChangeListStorage {
   public synchronized void purge(long period, int intervalBetweenActivities, Consumer<ChangeSet> processor) {
     if (isCompletelyBroken) return;
 
-    TIntHashSet recursionGuard = new TIntHashSet(1000);
-
     try {
-      int firstObsoleteId = findFirstObsoleteBlock(period, intervalBetweenActivities, recursionGuard);
+      int firstObsoleteId;
+      if (myPendingObsoleteId != 0 && myPendingPeriod == period && myPendingIntervalBetweenActivities == intervalBetweenActivities) {
+        // blocks are deleted only from the oldest one on, and the pending one has not been reached, so it is still there and obsolete
+        firstObsoleteId = myPendingObsoleteId;
+      }
+      else {
+        firstObsoleteId = findFirstObsoleteBlock(period, intervalBetweenActivities, new TIntHashSet(1000));
+      }
+      myPendingObsoleteId = 0;
       if (firstObsoleteId == 0) return;
 
-      int eachBlockId = firstObsoleteId;
+      // the oldest blocks go first, so that whatever part of the obsolete history is processed can be dropped right away
+      long deadline = System.currentTimeMillis() + ourPurgeTimeLimit;
+      TIntHashSet purgeRecursionGuard = new TIntHashSet(1000);
+      int lastPurgedId = 0;
+      int eachBlockId = myStorage.getFirstRecord();
 
       while (eachBlockId != 0) {
         processor.consume(doReadBlock(eachBlockId).changeSet);
-        eachBlockId = doReadPrevSafely(eachBlockId, recursionGuard);
+        lastPurgedId = eachBlockId;
+        if (eachBlockId == firstObsoleteId) break;
+        if (System.currentTimeMillis() >= deadline) {
+          myPendingObsoleteId = firstObsoleteId;
+          myPendingPeriod = period;
+          myPendingIntervalBetweenActivities = intervalBetweenActivities;
+          break;
+        }
+        eachBlockId = doReadNextSafely(eachBlockId, purgeRecursionGuard);
       }
-      myStorage.deleteRecordsUpTo(firstObsoleteId);
+      if (lastPurgedId == 0) return;
+
+      myStorage.deleteRecordsUpTo(lastPurgedId);
       myStorage.force();
     }
     catch (IOException e) {
@@ -246,6 +276,16 @@ public class ChangeListStorageImpl implements ChangeListStorage {
     }
   }
 
+  /**
+   * @return the previous limit
+   */
+  @TestOnly
+  public static long setPurgeTimeLimitInTests(long limit) {
+    long result = ourPurgeTimeLimit;
+    ourPurgeTimeLimit = limit;
+    return result;
+  }
+
   private int findFirstObsoleteBlock(long period, int intervalBetweenActivities, TIntHashSet recursionGuard) throws IOException {
     long prevTimestamp = 0;
     long length = 0;
@@ -275,4 +315,11 @@ public class ChangeListStorageImpl implements ChangeListStorage {
     if (!recursionGuard.add(prev)) throw new IOException("Recursive records found");
     return prev;
   }
+
+  private int doReadNextSafely(int id, TIntHashSet recursionGuard) throws IOException {
+    recursionGuard.add(id);
+    int next = myStorage.getNextRecord(id);
+    if (!recursionGuard.add(next)) throw new IOException("Recursive records found");
+    return next;
+  }
 }
\ No newline at end of file
@@ -16,6 +16,7 @@
 
 package com.intellij.history.integration;
 
+import com.intellij.concurrency.JobScheduler;
 import com.intellij.history.*;
 import com.intellij.history.core.*;
 import com.intellij.history.core.tree.RootEntry;
@@ -38,9 +39,13 @@ import org.jetbrains.annotations.Nullable;
 import org.jetbrains.annotations.TestOnly;
 
 import java.io.File;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class LocalHistoryImpl extends LocalHistory implements ApplicationComponent {
+  private static final int PURGE_INTERVAL_MINUTES = 1;
+
   private ChangeList myChangeList;
   private LocalHistoryFacade myVcs;
   private IdeaGateway myGateway;
@@ -49,6 +54,7 @@ public class LocalHistoryImpl extends LocalHistory implements ApplicationCompone
 
   private final AtomicBoolean isInitialized = new AtomicBoolean();
   private Runnable myShutdownTask;
+  private ScheduledFuture<?> myPurgeTask;
 
   public static LocalHistoryImpl getInstanceImpl() {
     return (LocalHistoryImpl)getInstance();
@@ -100,6 +106,33 @@ public class LocalHistoryImpl extends LocalHistory implements ApplicationCompone
         }
       });
     }
+
+    if (!ApplicationManager.getApplication().isUnitTestMode()) {
+      schedulePurge();
+    }
+  }
+
+  // every purge takes a short slice of the obsolete history, so a big backlog is dropped gradually during the session
+  private void schedulePurge() {
+    final Runnable purge = new Runnable() {
+      @Override
+      public void run() {
+        // the change list lock keeps disposeComponent() from closing the storage in the middle
+        synchronized (myChangeList) {
+          if (isInitialized()) myChangeList.purgeObsolete(getPurgePeriod());
+        }
+      }
+    };
+    myPurgeTask = JobScheduler.getScheduler().scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        ApplicationManager.getApplication().executeOnPooledThread(purge);
+      }
+    }, PURGE_INTERVAL_MINUTES, PURGE_INTERVAL_MINUTES, TimeUnit.MINUTES);
+  }
+
+  private static long getPurgePeriod() {
+    return Registry.intValue("localHistory.daysToKeep") * 1000L * 60 * 60 * 24;
   }
 
   private void validateStorage() {
@@ -128,7 +161,10 @@ public class LocalHistoryImpl extends LocalHistory implements ApplicationCompone
   public void disposeComponent() {
     if (!isInitialized.getAndSet(false)) return;
 
-    int period = Registry.intValue("localHistory.daysToKeep") * 1000 * 60 * 60 * 24;
+    if (myPurgeTask != null) {
+      myPurgeTask.cancel(false);
+      myPurgeTask = null;
+    }
 
     VirtualFileManager fm = VirtualFileManager.getInstance();
     fm.removeVirtualFileListener(myEventDispatcher);
@@ -138,7 +174,7 @@ public class LocalHistoryImpl extends LocalHistory implements ApplicationCompone
 
     validateStorage();
     LocalHistoryLog.LOG.info("Purging local history...");
-    myChangeList.purgeObsolete(period);
+    myChangeList.purgeObsolete(getPurgePeriod());
     validateStorage();
 
     myChangeList.close();
@@ -82,18 +82,19 @@ public class JobImpl<T> implements Job<T> {
   public void addTask(@NotNull Callable<T> callable, final Consumer<Future> onDoneCallback) {
     checkNotScheduled();
 
-    PrioritizedFutureTask<T> future =
-      new PrioritizedFutureTask<T>(callable, this, myJobIndex, JobSchedulerImpl.currentTaskIndex(), myPriority, myFailFastOnAcquireReadAction){
-        @Override
-        protected void done() {
-          super.done();
-          if (onDoneCallback != null) {
-            onDoneCallback.consume(this);
-          }
-          //TODO[cdr]: consider clearing thread locals: ReflectionUtil.resetThreadlocals();
-        }
-      };
     synchronized (myFutures) {
+      // tasks of the same job run in the order they were added
+      PrioritizedFutureTask<T> future =
+        new PrioritizedFutureTask<T>(callable, this, myJobIndex, myFutures.size(), myPriority, myFailFastOnAcquireReadAction){
+          @Override
+          protected void done() {
+            super.done();
+            if (onDoneCallback != null) {
+              onDoneCallback.consume(this);
+            }
+            //TODO[cdr]: consider clearing thread locals: ReflectionUtil.resetThreadlocals();
+          }
+        };
       myFutures.add(future);
     }
     runningTasks.incrementAndGet();
@@ -22,10 +22,8 @@ package com.intellij.concurrency;
 import com.intellij.openapi.Disposable;
 import org.jetbrains.annotations.NonNls;
 
-import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
 @NonNls
 public class JobSchedulerImpl extends JobScheduler implements Disposable {
@@ -43,38 +41,19 @@ public class JobSchedulerImpl extends JobScheduler implements Disposable {
     }
   };
 
-  private static final PriorityBlockingQueue<Runnable> ourQueue = new PriorityBlockingQueue<Runnable>();
-  private static final MyExecutor ourExecutor = new MyExecutor();
-
-  static int currentTaskIndex() {
-    return ourQueue.size();
-  }
+  private static final WorkStealingScheduler ourWorkers = new WorkStealingScheduler(CORES_COUNT, WORKERS_FACTORY);
 
   public void dispose() {
     ((ThreadPoolExecutor)getScheduler()).getQueue().clear();
+    ourWorkers.clear();
   }
 
   static Runnable stealTask() {
-    return ourQueue.poll();
+    return ourWorkers.stealTask();
   }
 
   static void submitTask(PrioritizedFutureTask future, boolean callerHasReadAccess, boolean reportExceptions) {
     future.beforeRun(callerHasReadAccess, reportExceptions);
-    ourExecutor.executeTask(future);
-  }
-
-  private static class MyExecutor extends ThreadPoolExecutor {
-    private MyExecutor() {
-      super(CORES_COUNT, Integer.MAX_VALUE, 60 * 10, TimeUnit.SECONDS, ourQueue, WORKERS_FACTORY);
-    }
-
-    private void executeTask(final PrioritizedFutureTask task) {
-      super.execute(task);
-    }
-
-    @Override
-    public void execute(Runnable command) {
-      throw new IllegalStateException("Use executeTask() to submit PrioritizedFutureTasks only");
-    }
+    ourWorkers.submit(future);
   }
 }
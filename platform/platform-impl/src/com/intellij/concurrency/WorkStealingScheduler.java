@@ -0,0 +1,204 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.concurrency;
+
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs {@link PrioritizedFutureTask}s on a fixed number of worker threads.
+ * <p/>
+ * Every worker has a queue of its own, so submitting and taking tasks doesn't contend on a single queue lock.
+ * Tasks submitted from a worker thread go to its own queue, tasks submitted from other threads are spread over all queues.
+ * Each queue is ordered by the task priority. A worker takes the most important task of its own queue and steals from
+ * the other queues only when its own one is empty, so the priorities are honored within a queue but not across the queues.
+ */
+class WorkStealingScheduler {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.concurrency.WorkStealingScheduler");
+
+  private final Worker[] myWorkers;
+  private final ThreadFactory myThreadFactory;
+  private final ThreadLocal<Worker> myCurrentWorker = new ThreadLocal<Worker>();
+  private final AtomicInteger myIdleCount = new AtomicInteger();
+  private volatile boolean myStarted;
+  private int mySubmitCount; // not synchronized, used only to spread tasks over the queues
+
+  WorkStealingScheduler(int parallelism, @NotNull ThreadFactory threadFactory) {
+    myThreadFactory = threadFactory;
+    myWorkers = new Worker[Math.max(1, parallelism)];
+    for (int i = 0; i < myWorkers.length; i++) {
+      myWorkers[i] = new Worker(i);
+    }
+  }
+
+  void submit(@NotNull PrioritizedFutureTask task) {
+    if (!myStarted) {
+      start();
+    }
+    Worker worker = myCurrentWorker.get();
+    TaskQueue queue = worker != null ? worker.myQueue : myWorkers[(mySubmitCount++ & Integer.MAX_VALUE) % myWorkers.length].myQueue;
+    queue.add(task);
+    if (myIdleCount.get() > 0) {
+      wakeUpIdleWorker();
+    }
+  }
+
+  /**
+   * @return a task for the calling thread to run while it waits for its job to finish, or null if there are no tasks
+   */
+  @Nullable
+  PrioritizedFutureTask stealTask() {
+    Worker worker = myCurrentWorker.get();
+    return findTask(worker != null ? worker.myIndex : (mySubmitCount & Integer.MAX_VALUE) % myWorkers.length);
+  }
+
+  /**
+   * Cancels the queued tasks, so that nobody waits for them forever.
+   */
+  void clear() {
+    for (Worker worker : myWorkers) {
+      for (PrioritizedFutureTask task : worker.myQueue.clear()) {
+        task.cancel(false);
+      }
+    }
+  }
+
+  private synchronized void start() {
+    if (myStarted) return;
+    for (Worker worker : myWorkers) {
+      worker.myThread = myThreadFactory.newThread(worker);
+      worker.myThread.start();
+    }
+    myStarted = true;
+  }
+
+  @Nullable
+  private PrioritizedFutureTask findTask(int startIndex) {
+    // the queue at the start index first, then the others one by one; the empty ones are skipped without locking them
+    for (int i = 0; i < myWorkers.length; i++) {
+      TaskQueue queue = myWorkers[(startIndex + i) % myWorkers.length].myQueue;
+      if (queue.isEmpty()) continue;
+      PrioritizedFutureTask task = queue.poll();
+      if (task != null) {
+        // there may be more work than busy workers
+        if (myIdleCount.get() > 0 && !queue.isEmpty()) {
+          wakeUpIdleWorker();
+        }
+        return task;
+      }
+    }
+    return null;
+  }
+
+  private void wakeUpIdleWorker() {
+    for (Worker worker : myWorkers) {
+      if (worker.setBusy()) {
+        LockSupport.unpark(worker.myThread);
+        return;
+      }
+    }
+  }
+
+  private class Worker implements Runnable {
+    private final int myIndex;
+    private final TaskQueue myQueue = new TaskQueue();
+    private final AtomicBoolean myIdle = new AtomicBoolean();
+    private volatile Thread myThread;
+
+    private Worker(int index) {
+      myIndex = index;
+    }
+
+    @Override
+    public void run() {
+      myCurrentWorker.set(this);
+      while (true) {
+        PrioritizedFutureTask task = findTask(myIndex);
+        if (task == null) {
+          task = awaitTask();
+        }
+        try {
+          task.run();
+        }
+        catch (Throwable e) {
+          LOG.error(e);
+        }
+      }
+    }
+
+    @NotNull
+    private PrioritizedFutureTask awaitTask() {
+      while (true) {
+        myIdle.set(true);
+        myIdleCount.incrementAndGet();
+        // a task submitted before the worker became idle is found here, a task submitted after that wakes some idle worker up
+        PrioritizedFutureTask task = findTask(myIndex);
+        if (task == null) {
+          LockSupport.park(this);
+          task = findTask(myIndex);
+        }
+        setBusy();
+        if (task != null) return task;
+      }
+    }
+
+    private boolean setBusy() {
+      if (myIdle.compareAndSet(true, false)) {
+        myIdleCount.decrementAndGet();
+        return true;
+      }
+      return false;
+    }
+  }
+
+  private static class TaskQueue {
+    private final PriorityQueue<PrioritizedFutureTask> myTasks = new PriorityQueue<PrioritizedFutureTask>();
+    private volatile int mySize; // read without the lock by workers looking for a queue to steal from
+
+    synchronized void add(@NotNull PrioritizedFutureTask task) {
+      myTasks.add(task);
+      mySize = myTasks.size();
+    }
+
+    @Nullable
+    synchronized PrioritizedFutureTask poll() {
+      PrioritizedFutureTask task = myTasks.poll();
+      mySize = myTasks.size();
+      return task;
+    }
+
+    boolean isEmpty() {
+      return mySize == 0;
+    }
+
+    @NotNull
+    synchronized List<PrioritizedFutureTask> clear() {
+      List<PrioritizedFutureTask> tasks = new ArrayList<PrioritizedFutureTask>(myTasks);
+      myTasks.clear();
+      mySize = 0;
+      return tasks;
+    }
+  }
+}
@@ -81,17 +81,15 @@ import java.util.List;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 @SuppressWarnings({"AssignmentToStaticFieldFromInstanceMethod"})
 public class ApplicationImpl extends ComponentManagerImpl implements ApplicationEx {
   private static final Logger LOG = Logger.getInstance("#com.intellij.application.impl.ApplicationImpl");
   private final ModalityState MODALITY_STATE_NONE = ModalityState.NON_MODAL;
 
-  // about writer preference: the way the java.util.concurrent.locks.ReentrantReadWriteLock.NonfairSync is implemented, the
-  // writer thread will be always at the queue head and therefore, java.util.concurrent.locks.ReentrantReadWriteLock.NonfairSync.readerShouldBlock()
-  // will return true if the write action is pending, exactly as we need
-  private final ReentrantReadWriteLock myLock = new ReentrantReadWriteLock(false);
+  // read actions vastly outnumber write actions, so readers take the lock without touching any shared state;
+  // writer preference: new read actions are not started while the write action is pending, exactly as we need
+  private final ReadMostlyRWLock myLock = new ReadMostlyRWLock();
 
   private final ModalityInvokator myInvokator = new ModalityInvokatorImpl();
 
@@ -355,7 +353,7 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
 
   @Override
   public boolean holdsReadLock() {
-    return myLock.getReadHoldCount() != 0;
+    return myLock.isReadLockedByThisThread();
   }
 
   @Override
@@ -945,7 +943,7 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
     else {
       assertReadActionAllowed();
       try {
-        myLock.readLock().lockInterruptibly();
+        myLock.readLock();
       }
       catch (InterruptedException e) {
         throw new RuntimeInterruptedException(e);
@@ -954,7 +952,7 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
         action.run();
       }
       finally {
-        myLock.readLock().unlock();
+        myLock.readUnlock();
       }
     }
   }
@@ -966,7 +964,7 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
     else {
       assertReadActionAllowed();
       try {
-        myLock.readLock().lockInterruptibly();
+        myLock.readLock();
       }
       catch (InterruptedException e) {
         throw new RuntimeInterruptedException(e);
@@ -975,7 +973,7 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
         return computation.compute();
       }
       finally {
-        myLock.readLock().unlock();
+        myLock.readUnlock();
       }
     }
   }
@@ -988,7 +986,7 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
     else {
       assertReadActionAllowed();
       try {
-        myLock.readLock().lockInterruptibly();
+        myLock.readLock();
       }
       catch (InterruptedException e) {
         throw new RuntimeInterruptedException(e);
@@ -997,7 +995,7 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
         return computation.compute();
       }
       finally {
-        myLock.readLock().unlock();
+        myLock.readUnlock();
       }
     }
   }
@@ -1183,13 +1181,7 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
 
     if (mustAcquire) {
       LOG.assertTrue(myTestModeFlag || !Thread.holdsLock(PsiLock.LOCK), "Thread must not hold PsiLock while performing readAction");
-      try {
-        // timed version of tryLock() respects fairness unlike the no-args method
-        if (!myLock.readLock().tryLock(0, TimeUnit.MILLISECONDS)) return false;
-      }
-      catch (InterruptedException e) {
-        throw new RuntimeInterruptedException(e);
-      }
+      if (!myLock.tryReadLock()) return false;
     }
 
     try {
@@ -1197,7 +1189,7 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
     }
     finally {
       if (mustAcquire) {
-        myLock.readLock().unlock();
+        myLock.readUnlock();
       }
     }
     return true;
@@ -1263,7 +1255,7 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
 
       LOG.assertTrue(isWriteAccessAllowed() || !Thread.holdsLock(PsiLock.LOCK), "Thread must not hold PsiLock while performing writeAction");
       try {
-        if (!myLock.writeLock().tryLock()) {
+        if (!myLock.tryWriteLock()) {
           if (ourDumpThreadsOnLongWriteActionWaiting > 0) {
             executeOnPooledThread(new Runnable() {
               @Override
@@ -1281,7 +1273,7 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
               }
             });
           }
-          myLock.writeLock().lockInterruptibly();
+          myLock.writeLock();
         }
         acquired();
       }
@@ -1303,7 +1295,7 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
         myWriteActionsStack.pop();
       }
       finally {
-        myLock.writeLock().unlock();
+        myLock.writeUnlock();
         released();
       }
     }
@@ -1351,7 +1343,7 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
     private ReadAccessToken() {
       assertReadActionAllowed();
       try {
-        myLock.readLock().lockInterruptibly();
+        myLock.readLock();
         acquired();
       }
       catch (InterruptedException e) {
@@ -1361,7 +1353,7 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
 
     @Override
     public void finish() {
-      myLock.readLock().unlock();
+      myLock.readUnlock();
       released();
     }
   }
@@ -1378,7 +1370,21 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
 
   @Override
   public boolean isWriteAccessAllowed() {
-    return myLock.writeLock().isHeldByCurrentThread();
+    return myLock.isWriteLockedByThisThread();
+  }
+
+  /**
+   * @return total time write actions spent waiting for running read actions to finish, in milliseconds
+   */
+  public long getWriteActionsWaitTime() {
+    return myLock.getWriterWaitTime();
+  }
+
+  /**
+   * @return number of write actions which had to wait for running read actions to finish
+   */
+  public int getContendedWriteActionsCount() {
+    return myLock.getContendedWritesCount();
   }
 
   public void editorPaintStart() {
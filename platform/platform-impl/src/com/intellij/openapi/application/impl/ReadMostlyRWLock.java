@@ -0,0 +1,264 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.application.impl;
+
+import com.intellij.util.containers.ContainerUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Read-write lock for the case of many reader threads and rare writes.
+ * <p/>
+ * Every reader thread announces its read lock in its own slot instead of updating a state word shared by all readers,
+ * so concurrent read actions don't contend for the same memory. A writer raises the "write requested" flag, which stops new readers,
+ * and waits until the slots of the current readers are released.
+ * <p/>
+ * Writers are preferred: no new read lock is granted while a writer is waiting, except to threads which already hold a read lock.
+ * Both read and write locks are reentrant; the thread holding the write lock may also take the read lock.
+ */
+class ReadMostlyRWLock {
+  private final List<Reader> myReaders = ContainerUtil.createLockFreeCopyOnWriteList();
+  private final ThreadLocal<Reader> myThreadReader = new ThreadLocal<Reader>() {
+    @Override
+    protected Reader initialValue() {
+      return new Reader(Thread.currentThread());
+    }
+  };
+  private final Object myReadersMonitor = new Object(); // readers wait on it for the writer to finish
+
+  private final ReentrantLock myWritersLock = new ReentrantLock();
+  private volatile boolean myWriteRequested;
+  private volatile Thread myWaitingWriter;
+  private volatile Thread myWriteThread;
+  private int myWriteHoldCount; // accessed by the write thread only
+
+  private volatile long myWriterWaitNanos; // updated by the write thread only
+  private volatile int myContendedWritesCount;
+
+  private static class Reader {
+    // weak, so that a terminated thread can be collected while its slot waits to be pruned
+    private final WeakReference<Thread> thread;
+    private volatile boolean readRequested;
+    private int holdCount; // accessed by the owner thread only
+    private boolean registered;
+
+    private Reader(@NotNull Thread thread) {
+      this.thread = new WeakReference<Thread>(thread);
+    }
+
+    private boolean isOwnedBy(@NotNull Thread thread) {
+      return this.thread.get() == thread;
+    }
+
+    private boolean isDead() {
+      Thread thread = this.thread.get();
+      return thread == null || !thread.isAlive();
+    }
+  }
+
+  @NotNull
+  private Reader getRegisteredReader() {
+    Reader reader = myThreadReader.get();
+    if (!reader.registered) {
+      reader.registered = true;
+      // a new reader thread often replaces a terminated one, e.g. in a thread pool
+      pruneDeadReaders();
+      myReaders.add(reader);
+    }
+    return reader;
+  }
+
+  private void pruneDeadReaders() {
+    for (Reader reader : myReaders) {
+      if (!reader.readRequested && reader.isDead()) {
+        myReaders.remove(reader);
+      }
+    }
+  }
+
+  public void readLock() throws InterruptedException {
+    if (Thread.interrupted()) throw new InterruptedException();
+    Reader reader = getRegisteredReader();
+    if (tryReentrantReadLock(reader)) return;
+
+    while (true) {
+      reader.readRequested = true;
+      if (!myWriteRequested) {
+        reader.holdCount = 1;
+        return;
+      }
+      reader.readRequested = false;
+      wakeUpWaitingWriter();
+
+      synchronized (myReadersMonitor) {
+        while (myWriteRequested) {
+          myReadersMonitor.wait();
+        }
+      }
+    }
+  }
+
+  public boolean tryReadLock() {
+    Reader reader = getRegisteredReader();
+    if (tryReentrantReadLock(reader)) return true;
+
+    reader.readRequested = true;
+    if (!myWriteRequested) {
+      reader.holdCount = 1;
+      return true;
+    }
+    reader.readRequested = false;
+    wakeUpWaitingWriter();
+    return false;
+  }
+
+  private boolean tryReentrantReadLock(@NotNull Reader reader) {
+    if (reader.holdCount != 0 || myWriteThread == Thread.currentThread()) {
+      reader.readRequested = true;
+      reader.holdCount++;
+      return true;
+    }
+    return false;
+  }
+
+  public void readUnlock() {
+    Reader reader = myThreadReader.get();
+    if (reader.holdCount == 0) throw new IllegalMonitorStateException("Read lock is not held by " + Thread.currentThread());
+    if (--reader.holdCount == 0) {
+      reader.readRequested = false;
+      if (myWriteRequested) {
+        wakeUpWaitingWriter();
+      }
+    }
+  }
+
+  public boolean isReadLockedByThisThread() {
+    return myThreadReader.get().holdCount != 0;
+  }
+
+  public void writeLock() throws InterruptedException {
+    Thread current = Thread.currentThread();
+    if (myWriteThread == current) {
+      myWriteHoldCount++;
+      return;
+    }
+
+    myWritersLock.lockInterruptibly();
+    requestWrite(current);
+    try {
+      long start = 0;
+      for (Reader reader : myReaders) {
+        while (reader.readRequested && !reader.isOwnedBy(current)) {
+          if (start == 0) start = System.nanoTime();
+          LockSupport.park(this);
+          if (Thread.interrupted()) throw new InterruptedException();
+        }
+      }
+      if (start != 0) {
+        myWriterWaitNanos += System.nanoTime() - start;
+        myContendedWritesCount++;
+      }
+    }
+    catch (InterruptedException e) {
+      cancelWriteRequest();
+      throw e;
+    }
+    writeAcquired(current);
+  }
+
+  public boolean tryWriteLock() {
+    Thread current = Thread.currentThread();
+    if (myWriteThread == current) {
+      myWriteHoldCount++;
+      return true;
+    }
+
+    if (!myWritersLock.tryLock()) return false;
+    requestWrite(current);
+    for (Reader reader : myReaders) {
+      if (reader.readRequested && !reader.isOwnedBy(current)) {
+        cancelWriteRequest();
+        return false;
+      }
+    }
+    writeAcquired(current);
+    return true;
+  }
+
+  public void writeUnlock() {
+    if (myWriteThread != Thread.currentThread()) throw new IllegalMonitorStateException("Write lock is not held by " + Thread.currentThread());
+    if (--myWriteHoldCount > 0) return;
+
+    myWriteThread = null;
+    releaseWriteRequest();
+  }
+
+  public boolean isWriteLockedByThisThread() {
+    return myWriteThread == Thread.currentThread();
+  }
+
+  /**
+   * @return total time writers spent waiting for read locks to be released, in milliseconds
+   */
+  public long getWriterWaitTime() {
+    return myWriterWaitNanos / 1000000;
+  }
+
+  /**
+   * @return number of write lock acquisitions which had to wait for read locks to be released
+   */
+  public int getContendedWritesCount() {
+    return myContendedWritesCount;
+  }
+
+  private void requestWrite(@NotNull Thread writer) {
+    // must be visible to readers before they see the request, so that a reader leaving its slot wakes the writer up
+    myWaitingWriter = writer;
+    myWriteRequested = true;
+  }
+
+  private void writeAcquired(@NotNull Thread writer) {
+    myWaitingWriter = null;
+    myWriteThread = writer;
+    myWriteHoldCount = 1;
+
+    pruneDeadReaders();
+  }
+
+  private void cancelWriteRequest() {
+    myWaitingWriter = null;
+    releaseWriteRequest();
+  }
+
+  private void releaseWriteRequest() {
+    myWriteRequested = false;
+    synchronized (myReadersMonitor) {
+      myReadersMonitor.notifyAll();
+    }
+    myWritersLock.unlock();
+  }
+
+  private void wakeUpWaitingWriter() {
+    Thread writer = myWaitingWriter;
+    if (writer != null) {
+      LockSupport.unpark(writer);
+    }
+  }
+}
@@ -16,14 +16,18 @@
 package com.intellij.openapi.editor.ex.util;
 
 import com.intellij.lexer.Lexer;
+import com.intellij.openapi.application.Application;
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ModalityState;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.Editor;
 import com.intellij.openapi.editor.HighlighterColors;
 import com.intellij.openapi.editor.colors.EditorColorsScheme;
 import com.intellij.openapi.editor.colors.TextAttributesKey;
 import com.intellij.openapi.editor.event.DocumentEvent;
 import com.intellij.openapi.editor.ex.DocumentEx;
+import com.intellij.openapi.editor.ex.EditorEx;
 import com.intellij.openapi.editor.ex.PrioritizedDocumentListener;
 import com.intellij.openapi.editor.highlighter.EditorHighlighter;
 import com.intellij.openapi.editor.highlighter.HighlighterClient;
@@ -34,6 +38,7 @@ import com.intellij.openapi.fileTypes.PlainSyntaxHighlighter;
 import com.intellij.openapi.fileTypes.SyntaxHighlighter;
 import com.intellij.openapi.project.DumbAwareRunnable;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Condition;
 import com.intellij.psi.tree.IElementType;
 import com.intellij.util.ArrayUtil;
 import com.intellij.util.ui.UIUtil;
@@ -45,6 +50,8 @@ import java.util.Map;
 
 public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDocumentListener {
   private static final Logger LOG = Logger.getInstance("#com.intellij.openapi.editor.ex.util.LexerEditorHighlighter");
+  private static final int LEXING_CHUNK_SIZE = 100000; // chars lexed at once when the text is lexed lazily
+  private static final int LAZY_LEXING_THRESHOLD = 5 * LEXING_CHUNK_SIZE;
   private HighlighterClient myEditor;
   private final Lexer myLexer;
   private final Map<IElementType, TextAttributes> myAttributesMap = new HashMap<IElementType, TextAttributes>();
@@ -52,6 +59,9 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
   private final SyntaxHighlighter myHighlighter;
   private EditorColorsScheme myScheme;
   private final int myInitialState;
+  // false when the segments cover only a prefix of the document; they are extended in the event dispatch thread only
+  private volatile boolean myLexingComplete = true;
+  private boolean myLexingScheduled;
 
   public LexerEditorHighlighter(@NotNull SyntaxHighlighter highlighter, @NotNull EditorColorsScheme scheme) {
     myScheme = scheme;
@@ -114,11 +124,68 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
         doSetText(document.getCharsSequence());
       }
 
+      if (!myLexingComplete) {
+        if (!ApplicationManager.getApplication().isDispatchThread()) {
+          // other threads read the segments without synchronization, so they mustn't see them grow
+          return createDetachedIterator(document, startOffset);
+        }
+        lexUpTo(startOffset);
+      }
+
       final int latestValidOffset = mySegments.getLastValidOffset();
       return new HighlighterIteratorImpl(startOffset <= latestValidOffset ? startOffset : latestValidOffset);
     }
   }
 
+  /**
+   * @return an iterator over a copy of the tokens lexed so far, which lexes the rest of the text into that copy on its own
+   * as far as it gets
+   */
+  @NotNull
+  private HighlighterIterator createDetachedIterator(@NotNull Document document, int startOffset) {
+    final SegmentArrayWithData segments = new SegmentArrayWithData();
+    segments.insert(mySegments, 0);
+    final DetachedLexing lexing = new DetachedLexing(document.getCharsSequence(), segments);
+    lexing.lexUpTo(startOffset);
+    return new HighlighterIteratorImpl(segments, Math.min(startOffset, segments.getLastValidOffset())) {
+      @Override
+      public boolean atEnd() {
+        if (currentIndex() >= segments.getSegmentCount()) {
+          lexing.lexUpTo(segments.getLastValidOffset());
+        }
+        return super.atEnd();
+      }
+    };
+  }
+
+  /**
+   * Lexing of the text after the lexed prefix for an iterator of another thread. The prefix ends where the lexer is
+   * in its initial state, see {@link #lexTokens}, so it is resumed from there with a lexer of its own.
+   */
+  private class DetachedLexing {
+    private final CharSequence myText;
+    private final SegmentArrayWithData myOwnSegments;
+    private final Lexer myOwnLexer = myHighlighter.getHighlightingLexer();
+    private boolean myComplete;
+
+    private DetachedLexing(@NotNull CharSequence text, @NotNull SegmentArrayWithData segments) {
+      myText = text;
+      myOwnSegments = segments;
+    }
+
+    private void lexUpTo(int offset) {
+      if (myComplete) return;
+      final int startOffset = myOwnSegments.getLastValidOffset();
+      final int stopOffset = Math.max(offset, startOffset) + getLexingChunkSize();
+      myComplete = lexTokens(myOwnLexer, myText, myOwnSegments.getSegmentCount(), startOffset, stopOffset, new TokenProcessor() {
+        @Override
+        public void addToken(int i, int startOffset, int endOffset, int data, IElementType tokenType) {
+          myOwnSegments.setElementAt(i, startOffset, endOffset, data);
+        }
+      });
+    }
+  }
+
   private int packData(IElementType tokenType, int state) {
     final short idx = tokenType.getIndex();
     return state == myInitialState ? idx : -idx;
@@ -151,6 +218,11 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
       return;
     }
 
+    if (!myLexingComplete) {
+      relexLazily(e);
+      return;
+    }
+
     CharSequence text = document.getCharsSequence();
     int oldStartOffset = e.getOffset();
 
@@ -267,6 +339,22 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
     myEditor.repaint(startOffset, repaintEnd);
   }
 
+  /**
+   * Drops the tokens affected by the change. The text after the last lexed token isn't lexed yet anyway, so there is nothing
+   * to converge with; the dropped tokens are lexed again together with the rest of the document.
+   */
+  private void relexLazily(@NotNull DocumentEvent e) {
+    int index = Math.max(0, mySegments.findSegmentIndex(Math.min(e.getOffset(), mySegments.getLastValidOffset())) - 2);
+    while (index > 0 && !isInitialState(mySegments.getSegmentData(index))) {
+      index--;
+    }
+    int startOffset = mySegments.getSegmentStart(index);
+    mySegments.remove(index, mySegments.getSegmentCount());
+
+    lexUpTo(e.getOffset() + e.getNewLength());
+    myEditor.repaint(startOffset, e.getDocument().getTextLength());
+  }
+
   @Override
   public void beforeDocumentChange(DocumentEvent event) {
   }
@@ -303,20 +391,11 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
   }
 
   private void doSetText(final CharSequence text) {
+    final boolean lazy = text.length() > getLazyLexingThreshold() && isLazyLexingAvailable(text) &&
+                         ApplicationManager.getApplication().isDispatchThread();
     final TokenProcessor processor = createTokenProcessor(0);
-    myLexer.start(text, 0, text.length(),myInitialState);
     mySegments.removeAll();
-    int i = 0;
-    while (true) {
-      final IElementType tokenType = myLexer.getTokenType();
-      if (tokenType == null) break;
-
-      int data = packData(tokenType, myLexer.getState());
-      processor.addToken(i, myLexer.getTokenStart(), myLexer.getTokenEnd(), data, tokenType);
-      i++;
-      myLexer.advance();
-    }
-    processor.finish();
+    myLexingComplete = lexTokens(myLexer, text, 0, 0, lazy ? getLexingChunkSize() : text.length(), processor);
 
     if(myEditor != null && !ApplicationManager.getApplication().isHeadlessEnvironment()) {
       UIUtil.invokeLaterIfNeeded(new DumbAwareRunnable() {
@@ -326,6 +405,118 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
         }
       });
     }
+    if (!myLexingComplete) {
+      scheduleLexing();
+    }
+  }
+
+  /**
+   * Lexes the text from the given offset, where the lexer must be in its initial state, and stores the tokens starting
+   * from the given segment index. Stops at the first token which starts at or after {@code stopOffset} in the initial lexer state,
+   * so that the lexing can be resumed from there later.
+   *
+   * @return true if the whole text is lexed
+   */
+  private boolean lexTokens(@NotNull Lexer lexer,
+                            @NotNull CharSequence text,
+                            int startIndex,
+                            int startOffset,
+                            int stopOffset,
+                            @NotNull TokenProcessor processor) {
+    lexer.start(text, startOffset, text.length(), myInitialState);
+    boolean complete = true;
+    int i = startIndex;
+    while (true) {
+      final IElementType tokenType = lexer.getTokenType();
+      if (tokenType == null) break;
+
+      int state = lexer.getState();
+      if (lexer.getTokenStart() >= stopOffset && state == myInitialState) {
+        complete = false;
+        break;
+      }
+      int data = packData(tokenType, state);
+      processor.addToken(i, lexer.getTokenStart(), lexer.getTokenEnd(), data, tokenType);
+      i++;
+      lexer.advance();
+    }
+    processor.finish();
+    return complete;
+  }
+
+  /**
+   * Big documents shown in an editor are lexed lazily: only the first chunk is lexed right away, the rest is lexed
+   * chunk by chunk in the event dispatch thread, or earlier when an iterator in that thread gets there. Iterators created
+   * in other threads meanwhile copy the tokens lexed so far and lex the rest on their own, as far as they get. The lexer can be restarted only from the tokens which start
+   * in its initial state, so the chunks can't be lexed independently of each other.
+   */
+  protected boolean isLazyLexingAvailable(@NotNull CharSequence text) {
+    final Document document = getDocument();
+    return document != null && document.getTextLength() == text.length();
+  }
+
+  /**
+   * @return length of the text starting from which the text is lexed lazily
+   * @see #isLazyLexingAvailable(CharSequence)
+   */
+  protected int getLazyLexingThreshold() {
+    final Application application = ApplicationManager.getApplication();
+    return application.isHeadlessEnvironment() || application.isUnitTestMode() ? Integer.MAX_VALUE : LAZY_LEXING_THRESHOLD;
+  }
+
+  /**
+   * @return length of the text lexed at once when the text is lexed lazily
+   */
+  protected int getLexingChunkSize() {
+    return LEXING_CHUNK_SIZE;
+  }
+
+  private synchronized void lexUpTo(int offset) {
+    final Document document = getDocument();
+    if (myLexingComplete || document == null || !ApplicationManager.getApplication().isDispatchThread()) return;
+
+    final int startOffset = mySegments.getLastValidOffset();
+    final int stopOffset = Math.max(offset, startOffset) + getLexingChunkSize();
+    final int startIndex = mySegments.getSegmentCount();
+    myLexingComplete = lexTokens(myLexer, document.getCharsSequence(), startIndex, startOffset, stopOffset, createTokenProcessor(startIndex));
+  }
+
+  private void scheduleLexing() {
+    if (myLexingScheduled) return;
+    myLexingScheduled = true;
+    ApplicationManager.getApplication().invokeLater(new DumbAwareRunnable() {
+      @Override
+      public void run() {
+        synchronized (LexerEditorHighlighter.this) {
+          myLexingScheduled = false;
+          if (myLexingComplete || isDetached()) return;
+
+          final int startOffset = mySegments.getLastValidOffset();
+          lexUpTo(startOffset);
+          myEditor.repaint(startOffset, mySegments.getLastValidOffset());
+          if (!myLexingComplete) {
+            scheduleLexing();
+          }
+        }
+      }
+    }, ModalityState.defaultModalityState(), new Condition() {
+      @Override
+      public boolean value(Object o) {
+        return isDetached();
+      }
+    });
+  }
+
+  /**
+   * @return true if the editor is released or highlighted by another highlighter, so the rest of the text needn't be lexed
+   */
+  private boolean isDetached() {
+    if (myEditor instanceof Editor) {
+      final Editor editor = (Editor)myEditor;
+      return editor.isDisposed() || editor instanceof EditorEx && ((EditorEx)editor).getHighlighter() != this;
+    }
+    final Project project = myEditor.getProject();
+    return project != null && project.isDisposed();
   }
 
   protected TokenProcessor createTokenProcessor(final int startIndex) {
@@ -354,10 +545,16 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
   }
 
   public class HighlighterIteratorImpl implements HighlighterIterator {
+    private final SegmentArrayWithData mySegments;
     private int mySegmentIndex = 0;
 
     HighlighterIteratorImpl(int startOffset) {
-      mySegmentIndex = mySegments.findSegmentIndex(startOffset);
+      this(LexerEditorHighlighter.this.mySegments, startOffset);
+    }
+
+    private HighlighterIteratorImpl(@NotNull SegmentArrayWithData segments, int startOffset) {
+      mySegments = segments;
+      mySegmentIndex = segments.findSegmentIndex(startOffset);
     }
 
     public int currentIndex() {
@@ -396,6 +593,9 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
 
     @Override
     public boolean atEnd() {
+      if (mySegmentIndex >= mySegments.getSegmentCount() && !myLexingComplete && mySegments == LexerEditorHighlighter.this.mySegments) {
+        lexUpTo(mySegments.getLastValidOffset());
+      }
       return mySegmentIndex >= mySegments.getSegmentCount() || mySegmentIndex < 0;
     }
 
@@ -142,10 +142,7 @@ class CacheUpdateRunner {
 
     final Ref<Boolean> isFinished = new Ref<Boolean>(Boolean.FALSE);
     try {
-      int threadsCount = Registry.intValue("caches.indexerThreadsCount");
-      if (threadsCount <= 0) {
-        threadsCount = Math.min(PROC_COUNT, 4);
-      }
+      int threadsCount = getIndexerThreadsCount();
       if (threadsCount == 1) {
         Runnable process = new MyRunnable(innerIndicator, queue, isFinished, progressUpdater, processInReadAction, application);
         ProgressManager.getInstance().runProcess(process, innerIndicator);
@@ -169,6 +166,14 @@ class CacheUpdateRunner {
     return isFinished.get();
   }
 
+  static int getIndexerThreadsCount() {
+    int threadsCount = Registry.intValue("caches.indexerThreadsCount");
+    if (threadsCount <= 0) {
+      threadsCount = Math.min(PROC_COUNT, 4);
+    }
+    return threadsCount;
+  }
+
   private static boolean waitForAll(Ref[] finishedRefs, Future<?>[] futures) {
     try {
       for (Future<?> future : futures) {
@@ -20,6 +20,7 @@ import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.util.registry.Registry;
 import com.intellij.openapi.vfs.InvalidVirtualFileAccessException;
 import com.intellij.openapi.vfs.VfsUtilCore;
 import com.intellij.openapi.vfs.VirtualFile;
@@ -29,9 +30,12 @@ import org.jetbrains.annotations.Nullable;
 import java.io.IOException;
 import java.util.ArrayDeque;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.Queue;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
 * @author peter
@@ -40,33 +44,65 @@ import java.util.concurrent.TimeUnit;
 public class FileContentQueue {
   private static final Logger LOG = Logger.getInstance("#com.intellij.ide.startup.FileContentQueue");
   private static final long SIZE_THRESHOLD = 1024*1024;
+  private static final long MAX_SIZE_THRESHOLD = SIZE_THRESHOLD * 16;
   private static final long TAKEN_FILES_THRESHOLD = 1024*1024*3;
   private static final long LARGE_SIZE_REQUEST_THRESHOLD = TAKEN_FILES_THRESHOLD - 1024 * 300; // 300k for other threads
+  private static final int QUEUE_CAPACITY_PER_LOADER = 256;
+
+  private final int myLoaderThreadsCount;
+  // loaded but not yet taken bytes, grows with the number of loaders but never takes more than 1/64 of the heap
+  private final long myLoadedSizeThreshold;
 
   private long myTotalSize;
   private long myTakenSize;
   private boolean myLargeSizeRequested;
 
-  private final ArrayBlockingQueue<FileContent> myQueue = new ArrayBlockingQueue<FileContent>(256);
+  private final ArrayBlockingQueue<FileContent> myQueue;
   private final Queue<FileContent> myPushbackBuffer = new ArrayDeque<FileContent>();
   private volatile boolean myContentLoadingThreadTerminated = false;
 
+  private final AtomicLong myLoadedFilesCount = new AtomicLong();
+  private final AtomicLong myLoadedBytes = new AtomicLong();
+  private final AtomicLong myLoadingTimeNanos = new AtomicLong();
+
+  public FileContentQueue() {
+    this(getDefaultLoaderThreadsCount());
+  }
+
+  public FileContentQueue(int loaderThreadsCount) {
+    myLoaderThreadsCount = Math.max(1, loaderThreadsCount);
+    myLoadedSizeThreshold = Math.max(SIZE_THRESHOLD, Math.min(Math.min(MAX_SIZE_THRESHOLD, SIZE_THRESHOLD * myLoaderThreadsCount),
+                                                              Runtime.getRuntime().maxMemory() / 64));
+    myQueue = new ArrayBlockingQueue<FileContent>(QUEUE_CAPACITY_PER_LOADER * myLoaderThreadsCount);
+  }
+
+  private static int getDefaultLoaderThreadsCount() {
+    int count = Registry.intValue("caches.contentLoaderThreadsCount");
+    if (count <= 0) {
+      count = Math.max(1, CacheUpdateRunner.getIndexerThreadsCount() / 2);
+    }
+    return count;
+  }
+
   public void queue(final Collection<VirtualFile> files, @NotNull final ProgressIndicator indicator) {
+    final Iterator<VirtualFile> filesIterator = files.iterator();
+    final AtomicInteger activeLoaders = new AtomicInteger(myLoaderThreadsCount);
+    final long started = System.currentTimeMillis();
+
     final Runnable contentLoadingRunnable = new Runnable() {
       public void run() {
+        boolean completed = false;
         try {
-          for (VirtualFile file : files) {
+          while (true) {
             indicator.checkCanceled();
+            final VirtualFile file;
+            synchronized (filesIterator) {
+              if (!filesIterator.hasNext()) break;
+              file = filesIterator.next();
+            }
             addLast(file, indicator);
           }
-
-          // put end-of-queue marker only if not canceled
-          try {
-            myQueue.put(new FileContent(null));
-          }
-          catch (InterruptedException e) {
-            LOG.error(e);
-          }
+          completed = true;
         }
         catch (ProcessCanceledException e) {
           // Do nothing, exit the thread.
@@ -75,12 +111,53 @@ public class FileContentQueue {
           LOG.error(e);
         }
         finally {
-          myContentLoadingThreadTerminated = true;
+          if (activeLoaders.decrementAndGet() == 0) {
+            try {
+              // put end-of-queue marker only if not canceled
+              if (completed && !indicator.isCanceled()) {
+                myQueue.put(new FileContent(null));
+                logStatistics(System.currentTimeMillis() - started);
+              }
+            }
+            catch (InterruptedException e) {
+              LOG.error(e);
+            }
+            finally {
+              myContentLoadingThreadTerminated = true;
+            }
+          }
         }
       }
     };
 
-    ApplicationManager.getApplication().executeOnPooledThread(contentLoadingRunnable);
+    for (int i = 0; i < myLoaderThreadsCount; i++) {
+      ApplicationManager.getApplication().executeOnPooledThread(contentLoadingRunnable);
+    }
+  }
+
+  private void logStatistics(long elapsedMs) {
+    final long bytes = myLoadedBytes.get();
+    LOG.info("Loaded " + myLoadedFilesCount.get() + " files, " + bytes / 1024 + "K in " + elapsedMs + " ms by " +
+             myLoaderThreadsCount + " thread(s), " + (elapsedMs > 0 ? bytes * 1000 / 1024 / elapsedMs : bytes / 1024) + "K/s");
+  }
+
+  public int getLoaderThreadsCount() {
+    return myLoaderThreadsCount;
+  }
+
+  public long getLoadedFilesCount() {
+    return myLoadedFilesCount.get();
+  }
+
+  public long getLoadedBytes() {
+    return myLoadedBytes.get();
+  }
+
+  /**
+   * @return time spent by all loader threads reading file contents, in milliseconds
+   */
+  public long getLoadingTime() {
+    return TimeUnit.NANOSECONDS.toMillis(myLoadingTimeNanos.get());
   }
 
   private void addLast(VirtualFile file, @NotNull final ProgressIndicator indicator) throws InterruptedException {
@@ -105,7 +182,7 @@ public class FileContentQueue {
     boolean counterUpdated = false;
     try {
       synchronized (this) {
-        while (myTotalSize > SIZE_THRESHOLD) {
+        while (myTotalSize > myLoadedSizeThreshold) {
           indicator.checkCanceled();
           wait(300L);
         }
@@ -113,7 +190,11 @@ public class FileContentQueue {
         counterUpdated = true;
       }
 
+      final long start = System.nanoTime();
       content.getBytes(); // Reads the content bytes and caches them.
+      myLoadingTimeNanos.addAndGet(System.nanoTime() - start);
+      myLoadedFilesCount.incrementAndGet();
+      myLoadedBytes.addAndGet(contentLength);
 
       return true;
     }
@@ -35,7 +35,9 @@ import com.intellij.util.containers.IntArrayList;
 import com.intellij.util.io.*;
 import com.intellij.util.io.DataOutputStream;
 import com.intellij.util.io.storage.*;
+import com.intellij.util.text.CaseInsensitiveStringHashingStrategy;
 import gnu.trove.TIntArrayList;
+import gnu.trove.TObjectIntHashMap;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -46,7 +48,11 @@ import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static com.intellij.util.io.IOUtil.deleteAllFilesStartingWith;
@@ -95,6 +101,24 @@ public class FSRecords implements Forceable {
   private static final ReentrantReadWriteLock.ReadLock r;
   private static final ReentrantReadWriteLock.WriteLock w;
 
+  // attribute data of a file is read and written under the stripe of its id alone; w is taken inside the stripe only to allocate
+  // attribute pages and to rewrite the header, operations that free attribute pages or flush the storages take all stripes first
+  private static final int FILE_LOCK_STRIPES = 64;
+  private static final Lock[] ourFileLocks = new Lock[FILE_LOCK_STRIPES];
+
+  // name indices of the children of big directories, built under the lock of the directory and dropped whenever its children
+  // list or the name of one of its children changes
+  private static final int MIN_INDEXED_CHILDREN = 64;
+  private static final int MAX_INDEXED_DIRECTORIES = 256;
+  private static final Object ourChildrenIndicesLock = new Object();
+  private static final Map<Integer, ChildrenIndex> ourChildrenIndices = new LinkedHashMap<Integer, ChildrenIndex>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Integer, ChildrenIndex> eldest) {
+      return size() > MAX_INDEXED_DIRECTORIES;
+    }
+  };
+  private static int ourChildrenIndicesStamp; // guarded by ourChildrenIndicesLock
+
   private static volatile int ourLocalModificationCount = 0;
   private static volatile boolean ourIsDisposed;
 
@@ -108,6 +132,27 @@ public class FSRecords implements Forceable {
     ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
     r = lock.readLock();
     w = lock.writeLock();
+
+    for (int i = 0; i < ourFileLocks.length; i++) {
+      ourFileLocks[i] = new ReentrantLock();
+    }
+  }
+
+  @NotNull
+  private static Lock getFileLock(int fileId) {
+    return ourFileLocks[fileId & (FILE_LOCK_STRIPES - 1)];
+  }
+
+  private static void lockAllFiles() {
+    for (Lock lock : ourFileLocks) {
+      lock.lock();
+    }
+  }
+
+  private static void unlockAllFiles() {
+    for (int i = ourFileLocks.length - 1; i >= 0; i--) {
+      ourFileLocks[i].unlock();
+    }
   }
 
   static class DbConnection {
@@ -122,7 +167,7 @@ public class FSRecords implements Forceable {
     private static PersistentBTreeEnumerator<byte[]> myContentHashesEnumerator;
     private static final TIntArrayList myFreeRecords = new TIntArrayList();
 
-    private static boolean myDirty = false;
+    private static volatile boolean myDirty = false;
     private static ScheduledFuture<?> myFlushingFuture;
     private static boolean myCorrupted = false;
 
@@ -383,6 +428,19 @@ public class FSRecords implements Forceable {
       }
     }
 
+    // for attribute writes, which hold only the stripe of their file
+    private static void markDirtyWithLock() {
+      if (!myDirty) {
+        w.lock();
+        try {
+          markDirty();
+        }
+        finally {
+          w.unlock();
+        }
+      }
+    }
+
     private static void setupFlushing() {
       myFlushingFuture = FlushingDaemon.everyFiveSeconds(new Runnable() {
         int lastModCount = 0;
@@ -398,6 +456,7 @@ public class FSRecords implements Forceable {
     }
 
     public static void force() {
+      lockAllFiles();
       try {
         w.lock();
         if (myRecords != null) {
@@ -413,12 +472,14 @@ public class FSRecords implements Forceable {
       }
       finally {
         w.unlock();
+        unlockAllFiles();
       }
     }
 
     public static void flushSome() {
       if (!isDirty() || HeavyProcessLatch.INSTANCE.isRunning()) return;
 
+      lockAllFiles();
       try {
         w.lock();
         if (myFlushingFuture == null) {
@@ -436,6 +497,7 @@ public class FSRecords implements Forceable {
       }
       finally {
         w.unlock();
+        unlockAllFiles();
       }
     }
 
@@ -477,6 +539,7 @@ public class FSRecords implements Forceable {
     }
 
     private static void closeFiles() throws IOException {
+      dropChildrenIndices();
       if (myFlushingFuture != null) {
         myFlushingFuture.cancel(false);
         myFlushingFuture = null;
@@ -613,16 +676,20 @@ public class FSRecords implements Forceable {
   }
 
   static void deleteRecordRecursively(int id) {
+    // attribute pages of the deleted files are freed, so no attribute of any file may be accessed meanwhile
+    lockAllFiles();
     try {
       w.lock();
       incModCount(id);
       doDeleteRecursively(id);
+      dropChildrenIndices();
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
     }
     finally {
       w.unlock();
+      unlockAllFiles();
     }
   }
 
@@ -681,8 +748,9 @@ public class FSRecords implements Forceable {
 
   static int[] listRoots() {
     try {
+      final Lock rootLock = getFileLock(1);
+      rootLock.lock();
       try {
-        r.lock();
         final DataInputStream input = readAttribute(1, CHILDREN_ATT);
         if (input == null) return ArrayUtil.EMPTY_INT_ARRAY;
 
@@ -700,7 +768,7 @@ public class FSRecords implements Forceable {
         }
       }
       finally {
-        r.unlock();
+        rootLock.unlock();
       }
     }
     catch (Throwable e) {
@@ -720,6 +788,8 @@ public class FSRecords implements Forceable {
 
   public static int findRootRecord(@NotNull String rootUrl) {
     try {
+      final Lock rootLock = getFileLock(1);
+      rootLock.lock();
       try {
         w.lock();
         DbConnection.markDirty();
@@ -770,6 +840,7 @@ public class FSRecords implements Forceable {
       }
       finally {
         w.unlock();
+        rootLock.unlock();
       }
     }
     catch (Throwable e) {
@@ -779,6 +850,8 @@ public class FSRecords implements Forceable {
 
   public static void deleteRootRecord(int id) {
     try {
+      final Lock rootLock = getFileLock(1);
+      rootLock.lock();
       try {
         w.lock();
         DbConnection.markDirty();
@@ -821,6 +894,7 @@ public class FSRecords implements Forceable {
       }
       finally {
         w.unlock();
+        rootLock.unlock();
       }
     }
     catch (Throwable e) {
@@ -830,7 +904,8 @@ public class FSRecords implements Forceable {
 
   public static int[] list(int id) {
     try {
-      r.lock();
+      final Lock fileLock = getFileLock(id);
+      fileLock.lock();
       try {
         final DataInputStream input = readAttribute(id, CHILDREN_ATT);
         if (input == null) return ArrayUtil.EMPTY_INT_ARRAY;
@@ -846,7 +921,7 @@ public class FSRecords implements Forceable {
         return result;
       }
       finally {
-        r.unlock();
+        fileLock.unlock();
       }
     }
     catch (Throwable e) {
@@ -854,6 +929,148 @@ public class FSRecords implements Forceable {
     }
   }
 
+  /**
+   * Finds a persisted child of the directory by name. Children of big directories are looked up in an in-memory index sorted
+   * by name id, so resolving all children of a directory is not quadratic in their number.
+   * @return id of the child with the given name or 0 if there is no such child
+   */
+  public static int findChild(int parentId, @NotNull String name, boolean caseSensitive) {
+    try {
+      final Lock fileLock = getFileLock(parentId);
+      fileLock.lock();
+      try {
+        // a name which has never been enumerated can't be the name of a persisted child, so probes don't enumerate it
+        final int nameId = findNameId(name);
+        final ChildrenIndex index = getChildrenIndex(parentId);
+        if (index != null) {
+          int childId = nameId != 0 ? index.findByNameId(nameId) : 0;
+          if (childId == 0 && !caseSensitive) {
+            childId = getNameIgnoringCaseIndex(index).get(name);
+          }
+          return childId;
+        }
+
+        final int[] children = list(parentId);
+        r.lock();
+        try {
+          if (nameId != 0) {
+            for (int childId : children) {
+              if (getRecordInt(childId, NAME_OFFSET) == nameId) return childId;
+            }
+          }
+          // for case sensitive file systems the above check is exhaustive in consistent state of vfs
+          if (!caseSensitive) {
+            for (int childId : children) {
+              final int childNameId = getRecordInt(childId, NAME_OFFSET);
+              if (childNameId != 0 && name.equalsIgnoreCase(getNames().valueOf(childNameId))) return childId;
+            }
+          }
+          return 0;
+        }
+        finally {
+          r.unlock();
+        }
+      }
+      finally {
+        fileLock.unlock();
+      }
+    }
+    catch (Throwable e) {
+      throw DbConnection.handleError(e);
+    }
+  }
+
+  // should be called under the lock of the directory
+  @Nullable
+  private static ChildrenIndex getChildrenIndex(int parentId) {
+    final int stamp;
+    synchronized (ourChildrenIndicesLock) {
+      final ChildrenIndex index = ourChildrenIndices.get(parentId);
+      if (index != null) return index;
+      stamp = ourChildrenIndicesStamp;
+    }
+
+    final int[] children = list(parentId);
+    if (children.length < MIN_INDEXED_CHILDREN) return null;
+
+    final long[] entries = new long[children.length];
+    r.lock();
+    try {
+      for (int i = 0; i < children.length; i++) {
+        entries[i] = (long)getRecordInt(children[i], NAME_OFFSET) << 32 | children[i] & 0xffffffffL;
+      }
+    }
+    finally {
+      r.unlock();
+    }
+    final ChildrenIndex index = new ChildrenIndex(entries);
+
+    synchronized (ourChildrenIndicesLock) {
+      // a child renamed meanwhile could make the index stale
+      if (stamp == ourChildrenIndicesStamp) {
+        ourChildrenIndices.put(parentId, index);
+      }
+    }
+    return index;
+  }
+
+  // should be called under the lock of the directory
+  @NotNull
+  private static TObjectIntHashMap<String> getNameIgnoringCaseIndex(@NotNull ChildrenIndex index) throws IOException {
+    TObjectIntHashMap<String> idsByName = index.myIdsByNameIgnoringCase;
+    if (idsByName == null) {
+      idsByName = new TObjectIntHashMap<String>(index.myIds.length, CaseInsensitiveStringHashingStrategy.INSTANCE);
+      r.lock();
+      try {
+        for (int i = 0; i < index.myIds.length; i++) {
+          if (index.myNameIds[i] != 0) {
+            idsByName.put(getNames().valueOf(index.myNameIds[i]), index.myIds[i]);
+          }
+        }
+      }
+      finally {
+        r.unlock();
+      }
+      index.myIdsByNameIgnoringCase = idsByName;
+    }
+    return idsByName;
+  }
+
+  private static void dropChildrenIndex(int parentId) {
+    synchronized (ourChildrenIndicesLock) {
+      ourChildrenIndicesStamp++;
+      ourChildrenIndices.remove(parentId);
+    }
+  }
+
+  private static void dropChildrenIndices() {
+    synchronized (ourChildrenIndicesLock) {
+      ourChildrenIndicesStamp++;
+      ourChildrenIndices.clear();
+    }
+  }
+
+  private static class ChildrenIndex {
+    private final int[] myNameIds;
+    private final int[] myIds;
+    private volatile TObjectIntHashMap<String> myIdsByNameIgnoringCase;
+
+    private ChildrenIndex(@NotNull long[] entries) {
+      Arrays.sort(entries);
+      myNameIds = new int[entries.length];
+      myIds = new int[entries.length];
+      for (int i = 0; i < entries.length; i++) {
+        myNameIds[i] = (int)(entries[i] >>> 32);
+        myIds[i] = (int)entries[i];
+      }
+    }
+
+    private int findByNameId(int nameId) {
+      final int i = Arrays.binarySearch(myNameIds, nameId);
+      return i >= 0 ? myIds[i] : 0;
+    }
+  }
+
   public static class NameId {
     public static final NameId[] EMPTY_ARRAY = new NameId[0];
     public final int id;
@@ -873,7 +1090,8 @@ public class FSRecords implements Forceable {
   @NotNull
   public static NameId[] listAll(int parentId) {
     try {
-      r.lock();
+      final Lock fileLock = getFileLock(parentId);
+      fileLock.lock();
       try {
         final DataInputStream input = readAttribute(parentId, CHILDREN_ATT);
         if (input == null) return NameId.EMPTY_ARRAY;
@@ -889,7 +1107,7 @@ public class FSRecords implements Forceable {
         return result;
       }
       finally {
-        r.unlock();
+        fileLock.unlock();
       }
     }
     catch (Throwable e) {
@@ -899,11 +1117,12 @@ public class FSRecords implements Forceable {
 
   public static boolean wereChildrenAccessed(int id) {
     try {
-      r.lock();
+      final Lock fileLock = getFileLock(id);
+      fileLock.lock();
       try {
         return findAttributePage(id, CHILDREN_ATT, false) != 0;
       } finally {
-        r.unlock();
+        fileLock.unlock();
       }
     }
     catch (Throwable e) {
@@ -912,9 +1131,9 @@ public class FSRecords implements Forceable {
   }
 
   public static void updateList(int id, @NotNull int[] children) {
+    final Lock fileLock = getFileLock(id);
     try {
-      w.lock();
-      DbConnection.markDirty();
+      fileLock.lock();
       final DataOutputStream record = writeAttribute(id, CHILDREN_ATT, false);
       DataInputOutputUtil.writeINT(record, children.length);
       for (int child : children) {
@@ -927,12 +1146,13 @@ public class FSRecords implements Forceable {
         }
       }
       record.close();
+      dropChildrenIndex(id);
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
     }
     finally {
-      w.unlock();
+      fileLock.unlock();
     }
   }
 
@@ -1038,6 +1258,25 @@ public class FSRecords implements Forceable {
     }
   }
 
+  /**
+   * Unlike {@link #getNameId(String)}, doesn't add the name to the names enumerator.
+   * @return id of the name or 0 if the name has never been enumerated
+   */
+  public static int findNameId(String name) {
+    try {
+      r.lock();
+      try {
+        return getNames().tryEnumerate(name);
+      }
+      finally {
+        r.unlock();
+      }
+    }
+    catch (Throwable e) {
+      throw DbConnection.handleError(e);
+    }
+  }
+
   public static String getName(int id) {
     try {
       r.lock();
@@ -1074,6 +1313,7 @@ public class FSRecords implements Forceable {
       w.lock();
       incModCount(id);
       putRecordInt(id, NAME_OFFSET, getNames().enumerate(name));
+      dropChildrenIndex(getRecordInt(id, PARENT_OFFSET));
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -1233,14 +1473,13 @@ public class FSRecords implements Forceable {
   @Nullable
   static DataInputStream readAttributeWithLock(int fileId, String attId) {
     try {
-      synchronized (attId) {
-        try {
-          r.lock();
-          return readAttribute(fileId, attId);
-        }
-        finally {
-          r.unlock();
-        }
+      final Lock fileLock = getFileLock(fileId);
+      fileLock.lock();
+      try {
+        return readAttribute(fileId, attId);
+      }
+      finally {
+        fileLock.unlock();
       }
     }
     catch (Throwable e) {
@@ -1248,7 +1487,7 @@ public class FSRecords implements Forceable {
     }
   }
 
-  // should be called under r or w lock
+  // should be called under the lock of the file
   @Nullable
   private static DataInputStream readAttribute(int fileId, String attId) throws IOException {
     int page = findAttributePage(fileId, attId, false);
@@ -1267,8 +1506,14 @@ public class FSRecords implements Forceable {
     if (recordId == 0) {
       if (!toWrite) return 0;
 
-      recordId = storage.createNewRecord();
-      setAttributeRecordId(fileId, recordId);
+      w.lock();
+      try {
+        recordId = storage.createNewRecord();
+        setAttributeRecordId(fileId, recordId);
+      }
+      finally {
+        w.unlock();
+      }
     }
     else {
       DataInputStream attrRefs = storage.readStream(recordId);
@@ -1286,17 +1531,23 @@ public class FSRecords implements Forceable {
     }
 
     if (toWrite) {
-      Storage.AppenderStream appender = storage.appendStream(recordId);
-      DataInputOutputUtil.writeINT(appender, encodedAttrId);
-      int attrAddress = storage.createNewRecord();
-      DataInputOutputUtil.writeINT(appender, attrAddress);
-      DbConnection.REASONABLY_SMALL.myAttrPageRequested = true;
+      w.lock();
       try {
-        appender.close();
-      } finally {
-        DbConnection.REASONABLY_SMALL.myAttrPageRequested = false;
+        Storage.AppenderStream appender = storage.appendStream(recordId);
+        DataInputOutputUtil.writeINT(appender, encodedAttrId);
+        int attrAddress = storage.createNewRecord();
+        DataInputOutputUtil.writeINT(appender, attrAddress);
+        DbConnection.REASONABLY_SMALL.myAttrPageRequested = true;
+        try {
+          appender.close();
+        } finally {
+          DbConnection.REASONABLY_SMALL.myAttrPageRequested = false;
+        }
+        return attrAddress;
+      }
+      finally {
+        w.unlock();
       }
-      return attrAddress;
     }
 
     return 0;
@@ -1403,7 +1654,17 @@ public class FSRecords implements Forceable {
 
   @NotNull
   public static DataOutputStream writeAttribute(final int fileId, @NotNull String attId, boolean fixedSize) {
-    return new AttributeOutputStream(fileId, attId, fixedSize);
+    return new AttributeOutputStream(fileId, attId, fixedSize, true);
+  }
+
+  /**
+   * Writes an attribute which caches a state of the file system rather than being a part of the VFS state, so unlike
+   * {@link #writeAttribute(int, String, boolean)} the modification counts of the file and its ancestors are left intact
+   * and the write may happen outside of a write action.
+   */
+  @NotNull
+  static DataOutputStream writeCacheAttribute(final int fileId, @NotNull String attId, boolean fixedSize) {
+    return new AttributeOutputStream(fileId, attId, fixedSize, false);
   }
 
   private static class ContentOutputStream extends DataOutputStream {
@@ -1536,12 +1797,14 @@ public class FSRecords implements Forceable {
     private final String myAttributeId;
     private final int myFileId;
     private final boolean myFixedSize;
+    private final boolean myIncModCount;
 
-    private AttributeOutputStream(final int fileId, @NotNull String attributeId, boolean fixedSize) {
+    private AttributeOutputStream(final int fileId, @NotNull String attributeId, boolean fixedSize, boolean incModCount) {
       super(new BufferExposingByteArrayOutputStream());
       myFileId = fileId;
       myFixedSize = fixedSize;
       myAttributeId = attributeId;
+      myIncModCount = incModCount;
     }
 
     @Override
@@ -1549,19 +1812,29 @@ public class FSRecords implements Forceable {
       super.close();
 
       try {
-        synchronized (myAttributeId) {
+        final Lock fileLock = getFileLock(myFileId);
+        fileLock.lock();
+        try {
           final BufferExposingByteArrayOutputStream _out = (BufferExposingByteArrayOutputStream)out;
-          final int page;
-          try {
+          if (myIncModCount) {
+            // the mod counts are kept in the header
             w.lock();
-            incModCount(myFileId);
-            page = findAttributePage(myFileId, myAttributeId, true);
+            try {
+              incModCount(myFileId);
+            }
+            finally {
+              w.unlock();
+            }
           }
-          finally {
-            w.unlock();
+          else {
+            DbConnection.markDirtyWithLock();
           }
+          final int page = findAttributePage(myFileId, myAttributeId, true);
           getAttributesStorage().writeBytes(page, new ByteSequence(_out.getInternalBuffer(), 0, _out.size()), myFixedSize);
         }
+        finally {
+          fileLock.unlock();
+        }
       }
       catch (Throwable e) {
         throw DbConnection.handleError(e);
@@ -1570,6 +1843,7 @@ public class FSRecords implements Forceable {
   }
 
   public static void dispose() {
+    lockAllFiles();
     try {
       w.lock();
       DbConnection.force();
@@ -1581,6 +1855,7 @@ public class FSRecords implements Forceable {
     finally {
       ourIsDisposed = true;
       w.unlock();
+      unlockAllFiles();
     }
   }
 
@@ -1591,6 +1866,7 @@ public class FSRecords implements Forceable {
   public static void checkSanity() {
     long t = System.currentTimeMillis();
 
+    lockAllFiles();
     try {
       r.lock();
       final int fileLength = (int)getRecords().length();
@@ -1613,6 +1889,7 @@ public class FSRecords implements Forceable {
     }
     finally {
       r.unlock();
+      unlockAllFiles();
     }
 
     t = System.currentTimeMillis() - t;
@@ -406,28 +406,16 @@ public class PersistentFSImpl extends PersistentFS implements ApplicationCompone
     }
 
     int parentId = getFileId(parent);
-    int[] children = FSRecords.list(parentId);
-
-    if (children.length > 0) {
-      // fast path, check that some child has same nameId as given name, this avoid O(N) on retrieving names for processing non-cached children
-      int nameId = FSRecords.getNameId(childName);
-      for (final int childId : children) {
-        if (nameId == FSRecords.getNameId(childId)) {
-          return childId;
-        }
-      }
-      // for case sensitive system the above check is exhaustive in consistent state of vfs
-    }
-
-    for (final int childId : children) {
-      if (namesEqual(fs, childName, FSRecords.getName(childId))) return childId;
+    int childId = FSRecords.findChild(parentId, childName, fs.isCaseSensitive());
+    if (childId != 0) {
+      return childId;
     }
 
     final VirtualFile fake = new FakeVirtualFile(parent, childName);
     final FileAttributes attributes = fs.getAttributes(fake);
     if (attributes != null) {
       final int child = createAndFillRecord(fs, fake, parentId, attributes);
-      FSRecords.updateList(parentId, ArrayUtil.append(children, child));
+      FSRecords.updateList(parentId, ArrayUtil.append(FSRecords.list(parentId), child));
       return child;
     }
 
@@ -21,21 +21,32 @@ import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.SystemInfo;
 import com.intellij.openapi.util.io.FileAttributes;
 import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vfs.LocalFileSystem;
 import com.intellij.openapi.vfs.VfsUtil;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileWithId;
 import com.intellij.openapi.vfs.newvfs.NewVirtualFile;
 import com.intellij.openapi.vfs.newvfs.NewVirtualFileSystem;
 import com.intellij.openapi.vfs.newvfs.events.*;
 import com.intellij.openapi.vfs.newvfs.impl.FakeVirtualFile;
 import com.intellij.openapi.vfs.newvfs.impl.VirtualDirectoryImpl;
+import com.intellij.util.ConcurrencyUtil;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.containers.Queue;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.*;
 
 import static com.intellij.openapi.diagnostic.LogUtil.debug;
 import static com.intellij.util.containers.ContainerUtil.newHashSet;
@@ -46,10 +57,24 @@ import static com.intellij.util.containers.ContainerUtil.newHashSet;
 public class RefreshWorker {
   private static final Logger LOG = Logger.getInstance("#com.intellij.openapi.vfs.newvfs.persistent.RefreshWorker");
 
+  // attributes of directory children are requested concurrently when there are enough of them to be worth it
+  private static final int STAT_THREADS = SystemProperties.getIntProperty("idea.refresh.stat.threads",
+                                                                          Math.min(4, Runtime.getRuntime().availableProcessors()));
+  private static final int PARALLEL_STAT_THRESHOLD = 64;
+  private static final int FS_TIME_RESOLUTION = 2000;
+  // timestamp a directory had when its full listing was last found to match the persisted children
+  private static final String LISTED_IN_SYNC_STAMP_ATT = "refresh.listed.in.sync.stamp";
+  // off by default: tools restoring directory timestamps (cp -a, rsync -t, archive extraction) hide added entries from the check
+  private static final boolean TRUST_DIRECTORY_TIMESTAMPS = SystemProperties.getBooleanProperty("idea.refresh.trust.directory.timestamps", false);
+  // local file systems which update the timestamp of a directory on every entry added, removed or renamed in it
+  private static final Set<String> KNOWN_MTIME_FS_TYPES = newHashSet("ext2", "ext3", "ext4", "xfs", "btrfs", "f2fs", "tmpfs");
+  private static final ExecutorService ourStatExecutor = createStatExecutor();
+
   private final boolean myIsRecursive;
   private final Queue<Pair<NewVirtualFile, FileAttributes>> myRefreshQueue = new Queue<Pair<NewVirtualFile, FileAttributes>>(100);
   private final List<VFileEvent> myEvents = new ArrayList<VFileEvent>();
   private volatile boolean myCancelled = false;
+  private List<Pair<String, String>> myMounts; // mount point and file system type, the longest mount points first
 
   public RefreshWorker(@NotNull NewVirtualFile refreshRoot, boolean isRecursive) {
     myIsRecursive = isRecursive;
@@ -110,21 +135,42 @@ public class RefreshWorker {
         VirtualDirectoryImpl dir = (VirtualDirectoryImpl)file;
         boolean fullSync = dir.allChildrenLoaded();
         if (fullSync) {
-          Set<String> currentNames = newHashSet(persistence.list(file));
-          Set<String> upToDateNames = newHashSet(VfsUtil.filterNames(fs.list(file)));
-          Set<String> newNames = newHashSet(upToDateNames);
-          newNames.removeAll(currentNames);
-          Set<String> deletedNames = newHashSet(currentNames);
-          deletedNames.removeAll(upToDateNames);
-          debug(LOG, "current=%s +%s -%s", currentNames, newNames, deletedNames);
+          boolean canTrustTimestamp = canTrustDirectoryTimestamp(fs, file, attributes);
+          Set<String> newNames;
+          Set<String> deletedNames;
+          if (canTrustTimestamp && getListedInSyncStamp(file) == attributes.lastModified) {
+            // no entries were added, removed or renamed since the directory was last found in sync, even if that was before restart
+            debug(LOG, "listing is up to date");
+            newNames = Collections.emptySet();
+            deletedNames = Collections.emptySet();
+          }
+          else {
+            Set<String> currentNames = newHashSet(persistence.list(file));
+            Set<String> upToDateNames = newHashSet(VfsUtil.filterNames(fs.list(file)));
+            newNames = newHashSet(upToDateNames);
+            newNames.removeAll(currentNames);
+            deletedNames = newHashSet(currentNames);
+            deletedNames.removeAll(upToDateNames);
+            debug(LOG, "current=%s +%s -%s", currentNames, newNames, deletedNames);
+
+            if (canTrustTimestamp && newNames.isEmpty() && deletedNames.isEmpty()) {
+              setListedInSyncStamp(file, attributes.lastModified);
+            }
+          }
 
           for (String name : deletedNames) {
             scheduleDeletion(file.findChild(name));
           }
 
+          List<VirtualFile> newChildren = new ArrayList<VirtualFile>(newNames.size());
           for (String name : newNames) {
+            newChildren.add(new FakeVirtualFile(file, name));
+          }
+          FileAttributes[] newChildrenAttributes = getAttributes(fs, newChildren);
+          for (int i = 0; i < newChildren.size(); i++) {
             if (myCancelled) break main;
-            FileAttributes childAttributes = fs.getAttributes(new FakeVirtualFile(file, name));
+            String name = newChildren.get(i).getName();
+            FileAttributes childAttributes = newChildrenAttributes[i];
             if (childAttributes != null) {
               scheduleCreation(file, name, childAttributes.isDirectory());
             }
@@ -133,26 +179,34 @@ public class RefreshWorker {
             }
           }
 
+          List<VirtualFile> children = new ArrayList<VirtualFile>();
           for (VirtualFile child : file.getChildren()) {
-            if (myCancelled) break main;
             if (!deletedNames.contains(child.getName())) {
-              FileAttributes childAttributes = fs.getAttributes(child);
-              if (childAttributes != null) {
-                checkAndScheduleChildRefresh(file, child, childAttributes);
-              }
-              else {
-                LOG.warn("fs=" + fs + " dir=" + file + " name=" + child.getName());
-                scheduleDeletion(child);
-              }
+              children.add(child);
+            }
+          }
+          FileAttributes[] childrenAttributes = getAttributes(fs, children);
+          for (int i = 0; i < children.size(); i++) {
+            if (myCancelled) break main;
+            VirtualFile child = children.get(i);
+            FileAttributes childAttributes = childrenAttributes[i];
+            if (childAttributes != null) {
+              checkAndScheduleChildRefresh(file, child, childAttributes);
+            }
+            else {
+              LOG.warn("fs=" + fs + " dir=" + file + " name=" + child.getName());
+              scheduleDeletion(child);
             }
           }
         }
         else {
-          Collection<VirtualFile> cachedChildren = file.getCachedChildren();
+          List<VirtualFile> cachedChildren = new ArrayList<VirtualFile>(file.getCachedChildren());
           debug(LOG, "cached=%s", cachedChildren);
-          for (VirtualFile child : cachedChildren) {
+          FileAttributes[] cachedChildrenAttributes = getAttributes(fs, cachedChildren);
+          for (int i = 0; i < cachedChildren.size(); i++) {
             if (myCancelled) break main;
-            FileAttributes childAttributes = fs.getAttributes(child);
+            VirtualFile child = cachedChildren.get(i);
+            FileAttributes childAttributes = cachedChildrenAttributes[i];
             if (childAttributes != null) {
               checkAndScheduleChildRefresh(file, child, childAttributes);
             }
@@ -206,6 +260,163 @@ public class RefreshWorker {
     }
   }
 
+  /**
+   * On some local file systems a directory's timestamp changes whenever an entry is added, removed or renamed in it, so the timestamp
+   * recorded when the directory's children were last known to match the disk tells whether it needs to be listed again.
+   * This only saves listing the directory: its children are still checked for attribute changes one by one.
+   * The timestamp is kept in an attribute of its own written only here, after a verified listing: the record's timestamp is also
+   * written when the record is created or touched, with no listing to back it.
+   * Timestamps too close to the current time are not trusted as the file system may not have enough resolution to reflect
+   * changes made right after them.
+   * <p/>
+   * The check is enabled by the "idea.refresh.trust.directory.timestamps" property and is limited to the Linux file systems known
+   * to have these semantics; network file systems may cache or skip directory timestamps.
+   */
+  private boolean canTrustDirectoryTimestamp(@NotNull NewVirtualFileSystem fs,
+                                             @NotNull NewVirtualFile dir,
+                                             @NotNull FileAttributes attributes) {
+    return TRUST_DIRECTORY_TIMESTAMPS &&
+           fs instanceof LocalFileSystem &&
+           dir.getParent() != null &&
+           attributes.lastModified > 0 &&
+           attributes.lastModified < System.currentTimeMillis() - FS_TIME_RESOLUTION &&
+           KNOWN_MTIME_FS_TYPES.contains(getFileSystemType(dir.getPath()));
+  }
+
+  @Nullable
+  private String getFileSystemType(@NotNull String path) {
+    if (myMounts == null) {
+      myMounts = loadMounts();
+    }
+    for (Pair<String, String> mount : myMounts) {
+      String mountPoint = mount.first;
+      if (path.equals(mountPoint) || path.startsWith(mountPoint.endsWith("/") ? mountPoint : mountPoint + "/")) {
+        return mount.second;
+      }
+    }
+    return null;
+  }
+
+  @NotNull
+  private static List<Pair<String, String>> loadMounts() {
+    if (!SystemInfo.isLinux) return Collections.emptyList();
+
+    List<Pair<String, String>> mounts = new ArrayList<Pair<String, String>>();
+    try {
+      for (String line : StringUtil.splitByLines(FileUtil.loadFile(new File("/proc/mounts")))) {
+        // device, mount point, type, options, ...; spaces in the mount point are escaped as \040
+        String[] fields = line.split(" ");
+        if (fields.length >= 3) {
+          mounts.add(Pair.create(fields[1].replace("\\040", " "), fields[2]));
+        }
+      }
+    }
+    catch (IOException e) {
+      LOG.info(e);
+      return Collections.emptyList();
+    }
+    // a later mount over the same point hides the earlier one
+    Collections.reverse(mounts);
+    Collections.sort(mounts, new Comparator<Pair<String, String>>() {
+      @Override
+      public int compare(Pair<String, String> o1, Pair<String, String> o2) {
+        return o2.first.length() - o1.first.length();
+      }
+    });
+    return mounts;
+  }
+
+  private static long getListedInSyncStamp(@NotNull VirtualFile dir) {
+    DataInputStream stream = FSRecords.readAttributeWithLock(((VirtualFileWithId)dir).getId(), LISTED_IN_SYNC_STAMP_ATT);
+    if (stream == null) return -1;
+    try {
+      try {
+        return stream.readLong();
+      }
+      finally {
+        stream.close();
+      }
+    }
+    catch (IOException e) {
+      LOG.info(e);
+      return -1;
+    }
+  }
+
+  private static void setListedInSyncStamp(@NotNull VirtualFile dir, long stamp) {
+    DataOutputStream stream = FSRecords.writeCacheAttribute(((VirtualFileWithId)dir).getId(), LISTED_IN_SYNC_STAMP_ATT, true);
+    try {
+      try {
+        stream.writeLong(stamp);
+      }
+      finally {
+        stream.close();
+      }
+    }
+    catch (IOException e) {
+      LOG.info(e);
+    }
+  }
+
+  @NotNull
+  private FileAttributes[] getAttributes(@NotNull final NewVirtualFileSystem fs, @NotNull final List<VirtualFile> files) {
+    final FileAttributes[] result = new FileAttributes[files.size()];
+    // only local file system is known to be safe for concurrent access and to gain from it
+    if (ourStatExecutor == null || !(fs instanceof LocalFileSystem) || files.size() < PARALLEL_STAT_THRESHOLD) {
+      for (int i = 0; i < result.length && !myCancelled; i++) {
+        result[i] = fs.getAttributes(files.get(i));
+      }
+      return result;
+    }
+
+    int chunkSize = (result.length + STAT_THREADS - 1) / STAT_THREADS;
+    List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(STAT_THREADS);
+    for (int start = 0; start < result.length; start += chunkSize) {
+      final int from = start;
+      final int to = Math.min(start + chunkSize, result.length);
+      tasks.add(new Callable<Object>() {
+        @Override
+        public Object call() {
+          for (int i = from; i < to && !myCancelled; i++) {
+            result[i] = fs.getAttributes(files.get(i));
+          }
+          return null;
+        }
+      });
+    }
+
+    try {
+      ConcurrencyUtil.invokeAll(tasks, ourStatExecutor);
+    }
+    catch (Throwable t) {
+      throw rethrow(t);
+    }
+    return result;
+  }
+
+  @NotNull
+  private static RuntimeException rethrow(@NotNull Throwable t) {
+    if (t instanceof RuntimeException) throw (RuntimeException)t;
+    if (t instanceof Error) throw (Error)t;
+    throw new RuntimeException(t);
+  }
+
+  @Nullable
+  private static ExecutorService createStatExecutor() {
+    if (STAT_THREADS < 2) return null;
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(STAT_THREADS, STAT_THREADS, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                                                         new ThreadFactory() {
+                                                           @Override
+                                                           public Thread newThread(@NotNull Runnable r) {
+                                                             Thread thread = new Thread(r, "FS Synchronizer Stat Worker");
+                                                             thread.setDaemon(true);
+                                                             return thread;
+                                                           }
+                                                         });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
   private void checkAndScheduleChildRefresh(@NotNull VirtualFile parent,
                                             @NotNull VirtualFile child,
                                             @NotNull FileAttributes childAttributes) {
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.concurrency;
+
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class WorkStealingSchedulerTest extends TestCase {
+  private static final long TIMEOUT_MS = 10000;
+
+  private static final ThreadFactory DAEMON_FACTORY = new ThreadFactory() {
+    @Override
+    public Thread newThread(@NotNull Runnable r) {
+      Thread thread = new Thread(r, "WorkStealingSchedulerTest worker");
+      thread.setDaemon(true);
+      return thread;
+    }
+  };
+
+  public void testManySubmitters() throws Exception {
+    final WorkStealingScheduler scheduler = new WorkStealingScheduler(4, DAEMON_FACTORY);
+    final int submitters = 8;
+    final int tasksPerSubmitter = 2000;
+    final AtomicInteger counter = new AtomicInteger();
+    final List<PrioritizedFutureTask> tasks = Collections.synchronizedList(new ArrayList<PrioritizedFutureTask>());
+
+    List<Callable<Object>> submissions = new ArrayList<Callable<Object>>();
+    for (int i = 0; i < submitters; i++) {
+      submissions.add(new Callable<Object>() {
+        @Override
+        public Object call() {
+          for (int j = 0; j < tasksPerSubmitter; j++) {
+            PrioritizedFutureTask task = createTask(j % 3, new Runnable() {
+              @Override
+              public void run() {
+                counter.incrementAndGet();
+              }
+            });
+            tasks.add(task);
+            scheduler.submit(task);
+          }
+          return null;
+        }
+      });
+    }
+    ExecutorService pool = Executors.newFixedThreadPool(submitters);
+    try {
+      for (Future<Object> future : pool.invokeAll(submissions, TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+        future.get();
+      }
+    }
+    finally {
+      pool.shutdownNow();
+    }
+
+    for (PrioritizedFutureTask task : tasks) {
+      await(task);
+    }
+    assertEquals(submitters * tasksPerSubmitter, counter.get());
+  }
+
+  public void testNestedTasksFromWorkers() throws Exception {
+    final WorkStealingScheduler scheduler = new WorkStealingScheduler(2, DAEMON_FACTORY);
+    final int outerCount = 8;
+    final int innerCount = 50;
+    final AtomicInteger counter = new AtomicInteger();
+
+    List<PrioritizedFutureTask> outerTasks = new ArrayList<PrioritizedFutureTask>();
+    for (int i = 0; i < outerCount; i++) {
+      PrioritizedFutureTask outer = createTask(0, new Runnable() {
+        @Override
+        public void run() {
+          List<PrioritizedFutureTask> innerTasks = new ArrayList<PrioritizedFutureTask>();
+          for (int j = 0; j < innerCount; j++) {
+            PrioritizedFutureTask inner = createTask(0, new Runnable() {
+              @Override
+              public void run() {
+                counter.incrementAndGet();
+              }
+            });
+            innerTasks.add(inner);
+            scheduler.submit(inner);
+          }
+          // help instead of blocking the worker, as JobImpl.scheduleAndWaitForResults() does
+          for (PrioritizedFutureTask inner : innerTasks) {
+            while (!inner.isDone()) {
+              Runnable task = scheduler.stealTask();
+              if (task == null) break;
+              task.run();
+            }
+            try {
+              await(inner);
+            }
+            catch (Exception e) {
+              throw new RuntimeException(e);
+            }
+          }
+        }
+      });
+      outerTasks.add(outer);
+      scheduler.submit(outer);
+    }
+
+    for (PrioritizedFutureTask outer : outerTasks) {
+      await(outer);
+    }
+    assertEquals(outerCount * innerCount, counter.get());
+  }
+
+  public void testCancellation() throws Exception {
+    final WorkStealingScheduler scheduler = new WorkStealingScheduler(1, DAEMON_FACTORY);
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger ran = new AtomicInteger();
+
+    PrioritizedFutureTask blocker = createTask(0, new Runnable() {
+      @Override
+      public void run() {
+        started.countDown();
+        awaitLatch(release);
+      }
+    });
+    scheduler.submit(blocker);
+    assertTrue(started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+    Runnable count = new Runnable() {
+      @Override
+      public void run() {
+        ran.incrementAndGet();
+      }
+    };
+    PrioritizedFutureTask cancelledTask = createTask(1, count);
+    TestJob cancelledJob = new TestJob();
+    cancelledJob.myCanceled = true;
+    PrioritizedFutureTask taskOfCancelledJob = createTask(cancelledJob, 1, count);
+    PrioritizedFutureTask task = createTask(2, count);
+    scheduler.submit(cancelledTask);
+    scheduler.submit(taskOfCancelledJob);
+    scheduler.submit(task);
+    assertTrue(cancelledTask.cancel(false));
+    release.countDown();
+
+    await(blocker);
+    await(task);
+    assertCancelled(cancelledTask);
+    assertCancelled(taskOfCancelledJob);
+    assertEquals(1, ran.get());
+  }
+
+  public void testIdleWorkersWakeUp() throws Exception {
+    final WorkStealingScheduler scheduler = new WorkStealingScheduler(4, DAEMON_FACTORY);
+    final AtomicInteger counter = new AtomicInteger();
+    Runnable increment = new Runnable() {
+      @Override
+      public void run() {
+        counter.incrementAndGet();
+      }
+    };
+
+    int expected = 0;
+    for (int round = 0; round < 200; round++) {
+      // let the workers run out of tasks and park before the next burst
+      Thread.sleep(1);
+      List<PrioritizedFutureTask> tasks = new ArrayList<PrioritizedFutureTask>();
+      for (int i = 0; i <= round % 7; i++) {
+        PrioritizedFutureTask task = createTask(0, increment);
+        tasks.add(task);
+        scheduler.submit(task);
+        expected++;
+      }
+      for (PrioritizedFutureTask task : tasks) {
+        await(task);
+      }
+    }
+    assertEquals(expected, counter.get());
+  }
+
+  public void testPriorityOrderWithinQueue() throws Exception {
+    final WorkStealingScheduler scheduler = new WorkStealingScheduler(1, DAEMON_FACTORY);
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    PrioritizedFutureTask blocker = createTask(0, new Runnable() {
+      @Override
+      public void run() {
+        started.countDown();
+        awaitLatch(release);
+      }
+    });
+    scheduler.submit(blocker);
+    assertTrue(started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+    List<Integer> order = submitPriorities(scheduler, 5, 1, 4, 2, 3);
+    release.countDown();
+    await(blocker);
+    assertOrder(order, 1, 2, 3, 4, 5);
+  }
+
+  public void testClearCancelsQueuedTasks() throws Exception {
+    final WorkStealingScheduler scheduler = new WorkStealingScheduler(1, DAEMON_FACTORY);
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    PrioritizedFutureTask blocker = createTask(0, new Runnable() {
+      @Override
+      public void run() {
+        started.countDown();
+        awaitLatch(release);
+      }
+    });
+    scheduler.submit(blocker);
+    assertTrue(started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+    final AtomicInteger ran = new AtomicInteger();
+    PrioritizedFutureTask task = createTask(0, new Runnable() {
+      @Override
+      public void run() {
+        ran.incrementAndGet();
+      }
+    });
+    scheduler.submit(task);
+    scheduler.clear();
+    release.countDown();
+
+    await(blocker);
+    assertCancelled(task);
+    assertEquals(0, ran.get());
+  }
+
+  @NotNull
+  private static List<Integer> submitPriorities(@NotNull WorkStealingScheduler scheduler, int... priorities) {
+    final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+    for (final int priority : priorities) {
+      scheduler.submit(createTask(priority, new Runnable() {
+        @Override
+        public void run() {
+          order.add(priority);
+        }
+      }));
+    }
+    return order;
+  }
+
+  private static void assertOrder(@NotNull List<Integer> order, int... expected) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+    while (order.size() < expected.length) {
+      if (System.currentTimeMillis() > deadline) fail("Tasks have not run: " + order);
+      Thread.sleep(1);
+    }
+    List<Integer> expectedOrder = new ArrayList<Integer>();
+    for (int priority : expected) {
+      expectedOrder.add(priority);
+    }
+    assertEquals(expectedOrder, order);
+  }
+
+  @NotNull
+  private static PrioritizedFutureTask createTask(int priority, @NotNull Runnable runnable) {
+    return createTask(new TestJob(), priority, runnable);
+  }
+
+  @NotNull
+  private static PrioritizedFutureTask createTask(@NotNull TestJob job, int priority, @NotNull Runnable runnable) {
+    return new PrioritizedFutureTask<Object>(Executors.callable(runnable), job, 0, 0, priority, false);
+  }
+
+  private static void await(@NotNull Future<?> future) throws Exception {
+    future.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+  }
+
+  private static void assertCancelled(@NotNull Future<?> future) throws Exception {
+    try {
+      await(future);
+      fail("Task should have been cancelled");
+    }
+    catch (CancellationException ignored) {
+    }
+  }
+
+  private static void awaitLatch(@NotNull CountDownLatch latch) {
+    try {
+      if (!latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+        throw new RuntimeException("Timed out waiting for the test to release the task");
+      }
+    }
+    catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static class TestJob extends JobImpl<Object> {
+    private volatile boolean myCanceled;
+
+    private TestJob() {
+      super(0, false);
+    }
+
+    @Override
+    public boolean isCanceled() {
+      return myCanceled;
+    }
+  }
+}
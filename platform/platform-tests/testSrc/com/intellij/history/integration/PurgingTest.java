@@ -16,6 +16,7 @@
 package com.intellij.history.integration;
 
 import com.intellij.history.LocalHistory;
+import com.intellij.history.core.ChangeListStorageImpl;
 import com.intellij.history.core.LocalHistoryTestCase;
 import com.intellij.history.core.changes.ChangeSet;
 import com.intellij.history.core.revisions.Revision;
@@ -24,6 +25,7 @@ import com.intellij.openapi.vfs.VirtualFile;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.Iterator;
 import java.util.List;
 
 public class PurgingTest extends IntegrationTestCase {
@@ -96,6 +98,77 @@ public class PurgingTest extends IntegrationTestCase {
     getVcs().getChangeListInTests().purgeObsolete(50);
   }
 
+  @Test
+  public void testInterruptedPurgeResumes() {
+    createChangesWithTimestamps(1, 2, 3, 4, 5);
+    // every purge is interrupted right after the first block
+    long oldLimit = ChangeListStorageImpl.setPurgeTimeLimitInTests(0);
+    try {
+      getVcs().getChangeListInTests().purgeObsolete(1);
+      assertRemainedChangesTimestamps(5, 4, 3, 2);
+
+      getVcs().getChangeListInTests().purgeObsolete(1);
+      assertRemainedChangesTimestamps(5, 4, 3);
+
+      getVcs().getChangeListInTests().purgeObsolete(1);
+      getVcs().getChangeListInTests().purgeObsolete(1);
+      assertRemainedChangesTimestamps(5);
+
+      getVcs().getChangeListInTests().purgeObsolete(1);
+      assertRemainedChangesTimestamps(5);
+    }
+    finally {
+      ChangeListStorageImpl.setPurgeTimeLimitInTests(oldLimit);
+    }
+  }
+
+  @Test
+  public void testInterruptedPurgeResumesAfterNewChanges() {
+    createChangesWithTimestamps(1, 2, 3, 4, 5);
+    long oldLimit = ChangeListStorageImpl.setPurgeTimeLimitInTests(0);
+    try {
+      getVcs().getChangeListInTests().purgeObsolete(2);
+      assertRemainedChangesTimestamps(5, 4, 3, 2);
+
+      createChangesWithTimestamps(6);
+      getVcs().getChangeListInTests().purgeObsolete(2);
+      getVcs().getChangeListInTests().purgeObsolete(2);
+      assertRemainedChangesTimestamps(6, 5, 4);
+
+      // the resumed purge is over, the next one finds the changes that have become obsolete since
+      getVcs().getChangeListInTests().purgeObsolete(2);
+      assertRemainedChangesTimestamps(6, 5);
+    }
+    finally {
+      ChangeListStorageImpl.setPurgeTimeLimitInTests(oldLimit);
+    }
+  }
+
+  @Test
+  public void testIterationGoesOnAfterPurge() {
+    createChangesWithTimestamps(1, 2, 3, 4, 5);
+    Iterator<ChangeSet> iterator = getVcs().getChangeListInTests().iterChanges().iterator();
+    assertEquals(5, iterator.next().getTimestamp());
+
+    getVcs().getChangeListInTests().purgeObsolete(3);
+    assertEquals(4, iterator.next().getTimestamp());
+    assertEquals(3, iterator.next().getTimestamp());
+    assertFalse(iterator.hasNext());
+  }
+
+  @Test
+  public void testIterationStopsWhenRecordOfPurgedChangeIsReused() {
+    createChangesWithTimestamps(1, 2, 3, 4, 5);
+    Iterator<ChangeSet> iterator = getVcs().getChangeListInTests().iterChanges().iterator();
+    assertEquals(5, iterator.next().getTimestamp());
+
+    getVcs().getChangeListInTests().purgeObsolete(1);
+    createChangesWithTimestamps(6);
+    assertEquals(4, iterator.next().getTimestamp());
+    assertFalse(iterator.hasNext());
+    assertRemainedChangesTimestamps(6, 5);
+  }
+
   @Test
   public void testChangesAfterPurge() throws IOException {
     Clock.setTime(1);
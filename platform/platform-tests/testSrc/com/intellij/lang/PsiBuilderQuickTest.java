@@ -298,6 +298,30 @@ public class PsiBuilderQuickTest extends LightPlatformTestCase {
                "Tokens [WHITE_SPACE] are outside of root element \"LETTER\". Text:\na ");
   }
 
+  public void testMarkerUsedAfterTreeBuilt() {
+    final PsiBuilder builder = createBuilder("a");
+    builder.setDebugMode(true);
+    final PsiBuilder.Marker root = builder.mark();
+    builder.advanceLexer();
+    root.done(ROOT);
+    builder.getTreeBuilt();
+
+    final PrintStream std = System.err;
+    //noinspection IOResourceOpenedButNotSafelyClosed
+    System.setErr(new PrintStream(new NullStream()));
+    try {
+      root.precede();
+      fail("should fail");
+    }
+    catch (AssertionError e) {
+      assertEquals("Marker is used after the tree has been built. Markers must not be kept after getTreeBuilt() or getLightTree()",
+                   e.getMessage());
+    }
+    finally {
+      System.setErr(std);
+    }
+  }
+
   public void testWhitespaceTrimming() {
     doTest(" a b ",
            new Parser() {
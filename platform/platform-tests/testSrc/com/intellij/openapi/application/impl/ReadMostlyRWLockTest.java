@@ -0,0 +1,296 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.application.impl;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ReadMostlyRWLockTest extends TestCase {
+  private static final long TIMEOUT_MS = 10000;
+  private static final long BLOCKED_MS = 100;
+
+  private final ReadMostlyRWLock myLock = new ReadMostlyRWLock();
+  private final List<ExecutorService> myThreads = new ArrayList<ExecutorService>();
+  private int myFirst;
+  private int mySecond;
+
+  @Override
+  protected void tearDown() throws Exception {
+    for (ExecutorService thread : myThreads) {
+      thread.shutdownNow();
+    }
+    super.tearDown();
+  }
+
+  public void testWriterPreference() throws Exception {
+    ExecutorService reader1 = newThread();
+    ExecutorService reader2 = newThread();
+    ExecutorService writer = newThread();
+
+    await(reader1.submit(readLock()));
+    Future<?> writeLock = writer.submit(writeLock());
+    assertBlocked(writeLock);
+    waitForWriteRequest();
+
+    assertFalse(await(reader2.submit(tryReadLock())));
+    Future<?> readLock = reader2.submit(readLock());
+    assertBlocked(readLock);
+
+    await(reader1.submit(readUnlock()));
+    await(writeLock);
+    assertBlocked(readLock);
+
+    await(writer.submit(writeUnlock()));
+    await(readLock);
+    await(reader2.submit(readUnlock()));
+  }
+
+  public void testReadLockIsReentrantWhileWriterWaits() throws Exception {
+    ExecutorService reader = newThread();
+    ExecutorService writer = newThread();
+
+    await(reader.submit(readLock()));
+    Future<?> writeLock = writer.submit(writeLock());
+    waitForWriteRequest();
+
+    await(reader.submit(readLock()));
+    assertTrue(await(reader.submit(tryReadLock())));
+
+    await(reader.submit(readUnlock()));
+    await(reader.submit(readUnlock()));
+    assertBlocked(writeLock);
+    await(reader.submit(readUnlock()));
+    await(writeLock);
+    await(writer.submit(writeUnlock()));
+  }
+
+  public void testReadLockInsideWriteLock() throws Exception {
+    myLock.writeLock();
+    myLock.readLock();
+    assertTrue(myLock.tryReadLock());
+    assertTrue(myLock.isReadLockedByThisThread());
+    assertTrue(myLock.tryWriteLock());
+
+    myLock.writeUnlock();
+    myLock.readUnlock();
+    myLock.readUnlock();
+    assertFalse(myLock.isReadLockedByThisThread());
+    assertTrue(myLock.isWriteLockedByThisThread());
+
+    myLock.writeUnlock();
+    assertFalse(myLock.isWriteLockedByThisThread());
+  }
+
+  public void testTryWriteLockFailsWithActiveReaders() throws Exception {
+    ExecutorService reader1 = newThread();
+    ExecutorService reader2 = newThread();
+
+    await(reader1.submit(readLock()));
+    assertFalse(myLock.tryWriteLock());
+    assertFalse(myLock.isWriteLockedByThisThread());
+
+    // the failed attempt must not keep new readers out
+    assertTrue(await(reader2.submit(tryReadLock())));
+    await(reader2.submit(readUnlock()));
+    await(reader1.submit(readUnlock()));
+
+    assertTrue(myLock.tryWriteLock());
+    myLock.writeUnlock();
+  }
+
+  public void testInterruptWaitingWriter() throws Exception {
+    ExecutorService reader1 = newThread();
+    ExecutorService reader2 = newThread();
+    final AtomicBoolean interrupted = new AtomicBoolean();
+    Thread writer = new Thread("writer") {
+      @Override
+      public void run() {
+        try {
+          myLock.writeLock();
+          myLock.writeUnlock();
+        }
+        catch (InterruptedException e) {
+          interrupted.set(true);
+        }
+      }
+    };
+
+    await(reader1.submit(readLock()));
+    writer.start();
+    waitForWriteRequest();
+    writer.interrupt();
+    writer.join(TIMEOUT_MS);
+    assertFalse(writer.isAlive());
+    assertTrue(interrupted.get());
+
+    assertTrue(await(reader2.submit(tryReadLock())));
+    await(reader2.submit(readUnlock()));
+    await(reader1.submit(readUnlock()));
+    assertTrue(myLock.tryWriteLock());
+    myLock.writeUnlock();
+  }
+
+  public void testReadLockThrowsForInterruptedThread() throws Exception {
+    Thread.currentThread().interrupt();
+    try {
+      myLock.readLock();
+      fail("InterruptedException expected");
+    }
+    catch (InterruptedException ignored) {
+    }
+    assertFalse(myLock.isReadLockedByThisThread());
+
+    myLock.readLock();
+    myLock.readUnlock();
+  }
+
+  public void testStress() throws Exception {
+    final int readers = 4;
+    final int reads = 20000;
+    final int writes = 2000;
+    final AtomicInteger inconsistentReads = new AtomicInteger();
+    List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+    for (int i = 0; i < readers; i++) {
+      tasks.add(new Callable<Object>() {
+        @Override
+        public Object call() throws Exception {
+          for (int j = 0; j < reads; j++) {
+            myLock.readLock();
+            try {
+              if (myFirst != mySecond) inconsistentReads.incrementAndGet();
+            }
+            finally {
+              myLock.readUnlock();
+            }
+          }
+          return null;
+        }
+      });
+    }
+    tasks.add(new Callable<Object>() {
+      @Override
+      public Object call() throws Exception {
+        for (int j = 0; j < writes; j++) {
+          myLock.writeLock();
+          try {
+            myFirst++;
+            Thread.yield();
+            mySecond++;
+          }
+          finally {
+            myLock.writeUnlock();
+          }
+        }
+        return null;
+      }
+    });
+
+    ExecutorService pool = Executors.newFixedThreadPool(tasks.size());
+    myThreads.add(pool);
+    for (Future<Object> future : pool.invokeAll(tasks, TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+      future.get();
+    }
+
+    assertEquals(0, inconsistentReads.get());
+    assertEquals(writes, myFirst);
+    assertEquals(writes, mySecond);
+  }
+
+  private ExecutorService newThread() {
+    ExecutorService thread = Executors.newSingleThreadExecutor();
+    myThreads.add(thread);
+    return thread;
+  }
+
+  /**
+   * Waits until a writer has announced its request, which is when the lock stops granting new read locks.
+   */
+  private void waitForWriteRequest() throws Exception {
+    long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+    while (myLock.tryReadLock()) {
+      myLock.readUnlock();
+      if (System.currentTimeMillis() > deadline) fail("Write lock was not requested");
+      Thread.sleep(1);
+    }
+  }
+
+  private static <T> T await(Future<T> future) throws Exception {
+    return future.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+  }
+
+  private static void assertBlocked(Future<?> future) throws Exception {
+    try {
+      future.get(BLOCKED_MS, TimeUnit.MILLISECONDS);
+      fail("Lock acquired while it should be blocked");
+    }
+    catch (TimeoutException ignored) {
+    }
+  }
+
+  private Callable<Object> readLock() {
+    return new Callable<Object>() {
+      @Override
+      public Object call() throws Exception {
+        myLock.readLock();
+        return null;
+      }
+    };
+  }
+
+  private Callable<Boolean> tryReadLock() {
+    return new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return myLock.tryReadLock();
+      }
+    };
+  }
+
+  private Callable<Object> readUnlock() {
+    return new Callable<Object>() {
+      @Override
+      public Object call() {
+        myLock.readUnlock();
+        return null;
+      }
+    };
+  }
+
+  private Callable<Object> writeLock() {
+    return new Callable<Object>() {
+      @Override
+      public Object call() throws Exception {
+        myLock.writeLock();
+        return null;
+      }
+    };
+  }
+
+  private Callable<Object> writeUnlock() {
+    return new Callable<Object>() {
+      @Override
+      public Object call() {
+        myLock.writeUnlock();
+        return null;
+      }
+    };
+  }
+}
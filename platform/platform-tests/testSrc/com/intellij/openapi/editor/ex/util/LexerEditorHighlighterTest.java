@@ -0,0 +1,224 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.ex.util;
+
+import com.intellij.lang.Language;
+import com.intellij.lexer.Lexer;
+import com.intellij.lexer.LexerBase;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.EditorFactory;
+import com.intellij.openapi.editor.colors.EditorColorsManager;
+import com.intellij.openapi.editor.colors.TextAttributesKey;
+import com.intellij.openapi.editor.highlighter.HighlighterIterator;
+import com.intellij.openapi.editor.highlighter.LightHighlighterClient;
+import com.intellij.openapi.fileTypes.SyntaxHighlighterBase;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.testFramework.LightPlatformTestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+public class LexerEditorHighlighterTest extends LightPlatformTestCase {
+  private static final IElementType TEXT = new IElementType("TEXT", Language.ANY);
+  private static final IElementType STRING = new IElementType("STRING", Language.ANY);
+
+  public void testEditInsideLexedPrefix() {
+    doTest(new Edit(5, 0, "\""), new Edit(12, 3, ""));
+  }
+
+  public void testEditAfterLexedPrefix() {
+    doTest(new Edit(200, 0, "\"x"), new Edit(250, 5, "yy"));
+  }
+
+  public void testEditsInsideAndAfterLexedPrefix() {
+    doTest(new Edit(300, 2, "\""), new Edit(3, 0, "\"\"\""), new Edit(150, 40, ""));
+  }
+
+  public void testIteratorInBackgroundThread() throws Exception {
+    final Document document = createDocument();
+    final TestHighlighter highlighter = createLazyHighlighter(document);
+    final int lexedOffset = highlighter.getSegments().getLastValidOffset();
+
+    Future<String> tokens = ApplicationManager.getApplication().executeOnPooledThread(new Callable<String>() {
+      @Override
+      public String call() {
+        return getTokens(highlighter);
+      }
+    });
+    Future<Integer> tokenStart = ApplicationManager.getApplication().executeOnPooledThread(new Callable<Integer>() {
+      @Override
+      public Integer call() {
+        return highlighter.createIterator(205).getStart();
+      }
+    });
+
+    TestHighlighter fullHighlighter = new TestHighlighter(false);
+    fullHighlighter.setText(document.getText());
+    assertEquals(getTokens(fullHighlighter), tokens.get());
+    assertEquals(205, tokenStart.get().intValue());
+    assertEquals("Other threads must not extend the lexed text", lexedOffset, highlighter.getSegments().getLastValidOffset());
+  }
+
+  private void doTest(@NotNull final Edit... edits) {
+    final Document document = createDocument();
+    final TestHighlighter highlighter = createLazyHighlighter(document);
+
+    for (final Edit edit : edits) {
+      ApplicationManager.getApplication().runWriteAction(new Runnable() {
+        @Override
+        public void run() {
+          document.replaceString(edit.offset, edit.offset + edit.length, edit.text);
+        }
+      });
+    }
+
+    TestHighlighter fullHighlighter = new TestHighlighter(false);
+    fullHighlighter.setText(document.getText());
+    assertEquals(getTokens(fullHighlighter), getTokens(highlighter));
+  }
+
+  @NotNull
+  private static Document createDocument() {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 40; i++) {
+      text.append("ab \"cd\" ");
+    }
+    return EditorFactory.getInstance().createDocument(text);
+  }
+
+  @NotNull
+  private TestHighlighter createLazyHighlighter(@NotNull Document document) {
+    TestHighlighter highlighter = new TestHighlighter(true);
+    document.addDocumentListener(highlighter);
+    highlighter.setEditor(new LightHighlighterClient(document, getProject()));
+    highlighter.setText(document.getCharsSequence());
+    assertTrue("Text should be lexed lazily", highlighter.getSegments().getLastValidOffset() < document.getTextLength());
+    return highlighter;
+  }
+
+  @NotNull
+  private static String getTokens(@NotNull LexerEditorHighlighter highlighter) {
+    StringBuilder result = new StringBuilder();
+    for (HighlighterIterator iterator = highlighter.createIterator(0); !iterator.atEnd(); iterator.advance()) {
+      result.append(iterator.getStart()).append('-').append(iterator.getEnd()).append(' ').append(iterator.getTokenType()).append('\n');
+    }
+    return result.toString();
+  }
+
+  private static class Edit {
+    private final int offset;
+    private final int length;
+    private final String text;
+
+    private Edit(int offset, int length, @NotNull String text) {
+      this.offset = offset;
+      this.length = length;
+      this.text = text;
+    }
+  }
+
+  private static class TestHighlighter extends LexerEditorHighlighter {
+    private final boolean myLazy;
+
+    private TestHighlighter(boolean lazy) {
+      super(new SyntaxHighlighterBase() {
+        @NotNull
+        @Override
+        public Lexer getHighlightingLexer() {
+          return new QuoteLexer();
+        }
+
+        @NotNull
+        @Override
+        public TextAttributesKey[] getTokenHighlights(IElementType tokenType) {
+          return EMPTY;
+        }
+      }, EditorColorsManager.getInstance().getGlobalScheme());
+      myLazy = lazy;
+    }
+
+    @Override
+    protected int getLazyLexingThreshold() {
+      return myLazy ? 20 : Integer.MAX_VALUE;
+    }
+
+    @Override
+    protected int getLexingChunkSize() {
+      return 10;
+    }
+  }
+
+  /**
+   * Every char is a token; quotes switch the lexer to the string state and back, so an inserted quote changes the states
+   * of all the following tokens.
+   */
+  private static class QuoteLexer extends LexerBase {
+    private CharSequence myBuffer;
+    private int myEnd;
+    private int myPosition;
+    private int myState;
+
+    @Override
+    public void start(@NotNull CharSequence buffer, int startOffset, int endOffset, int initialState) {
+      myBuffer = buffer;
+      myPosition = startOffset;
+      myEnd = endOffset;
+      myState = initialState;
+    }
+
+    @Override
+    public int getState() {
+      return myState;
+    }
+
+    @Override
+    public IElementType getTokenType() {
+      if (myPosition >= myEnd) return null;
+      return myState == 1 || myBuffer.charAt(myPosition) == '"' ? STRING : TEXT;
+    }
+
+    @Override
+    public int getTokenStart() {
+      return myPosition;
+    }
+
+    @Override
+    public int getTokenEnd() {
+      return myPosition + 1;
+    }
+
+    @Override
+    public void advance() {
+      if (myBuffer.charAt(myPosition) == '"') {
+        myState = 1 - myState;
+      }
+      myPosition++;
+    }
+
+    @NotNull
+    @Override
+    public CharSequence getBufferSequence() {
+      return myBuffer;
+    }
+
+    @Override
+    public int getBufferEnd() {
+      return myEnd;
+    }
+  }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.ide.highlighter.custom.SyntaxTable;
+import com.intellij.openapi.fileTypes.FileType;
+import com.intellij.openapi.fileTypes.PlainTextFileType;
+import com.intellij.openapi.fileTypes.UnknownFileType;
+import com.intellij.openapi.fileTypes.impl.AbstractFileType;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.UserDataHolderBase;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.CharsetToolkit;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiFile;
+import com.intellij.util.io.EnumeratorIntegerDescriptor;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import com.intellij.util.io.IOUtil;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+public class ContentHashIndexerTest extends TestCase {
+  private File myFile;
+  private ContentHashIndexer<String, Integer> myIndexer;
+  private int myMapCount;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myFile = FileUtil.createTempFile("contentHash", "snapshots");
+    myIndexer = createIndexer(1);
+  }
+
+  @NotNull
+  private ContentHashIndexer<String, Integer> createIndexer(int version) throws IOException {
+    return new ContentHashIndexer<String, Integer>("test", version, new DataIndexer<String, Integer, FileContent>() {
+      @NotNull
+      @Override
+      public Map<String, Integer> map(FileContent inputData) {
+        myMapCount++;
+        final String text = new String(inputData.getContent(), CharsetToolkit.UTF8_CHARSET);
+        return Collections.singletonMap(text, text.length());
+      }
+    }, new EnumeratorStringDescriptor(), EnumeratorIntegerDescriptor.INSTANCE, myFile, Long.MAX_VALUE);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    myIndexer.dispose();
+    IOUtil.deleteAllFilesStartingWith(myFile);
+    super.tearDown();
+  }
+
+  public void testDuplicateIsMappedUntilStored() {
+    final Map<String, Integer> expected = Collections.singletonMap("content", 7);
+    assertEquals(expected, map("content", PlainTextFileType.INSTANCE, CharsetToolkit.UTF8_CHARSET));
+    assertEquals(1, myMapCount);
+
+    // the first occurrence only marks the content as seen, the second one stores its input map
+    assertEquals(expected, map("content", PlainTextFileType.INSTANCE, CharsetToolkit.UTF8_CHARSET));
+    assertEquals(2, myMapCount);
+
+    for (int i = 0; i < 3; i++) {
+      assertEquals(expected, map("content", PlainTextFileType.INSTANCE, CharsetToolkit.UTF8_CHARSET));
+    }
+    assertEquals(2, myMapCount);
+  }
+
+  public void testDifferentFileTypeOrCharsetMisses() {
+    for (int i = 0; i < 2; i++) {
+      map("content", PlainTextFileType.INSTANCE, CharsetToolkit.UTF8_CHARSET);
+    }
+    assertEquals(2, myMapCount);
+
+    map("content", UnknownFileType.INSTANCE, CharsetToolkit.UTF8_CHARSET);
+    assertEquals(3, myMapCount);
+
+    map("content", PlainTextFileType.INSTANCE, CharsetToolkit.UTF_16_CHARSET);
+    assertEquals(4, myMapCount);
+
+    map("content", PlainTextFileType.INSTANCE, null);
+    assertEquals(5, myMapCount);
+
+    map("other content", PlainTextFileType.INSTANCE, CharsetToolkit.UTF8_CHARSET);
+    assertEquals(6, myMapCount);
+  }
+
+  public void testChangedSyntaxTableMisses() {
+    final SyntaxTable table = new SyntaxTable();
+    table.addKeyword1("if");
+    final AbstractFileType fileType = new AbstractFileType(table);
+    fileType.setName("Custom");
+    final byte[] content = "if else".getBytes(CharsetToolkit.UTF8_CHARSET);
+    final byte[] hash = ContentHashIndexer.calculateHash(content, fileType, null, CharsetToolkit.UTF8_CHARSET);
+    assertTrue(Arrays.equals(hash, ContentHashIndexer.calculateHash(content, fileType, null, CharsetToolkit.UTF8_CHARSET)));
+
+    table.addKeyword1("else");
+    assertFalse(Arrays.equals(hash, ContentHashIndexer.calculateHash(content, fileType, null, CharsetToolkit.UTF8_CHARSET)));
+  }
+
+  public void testIndexerIsRunAgainAfterClear() {
+    for (int i = 0; i < 3; i++) {
+      map("content", PlainTextFileType.INSTANCE, CharsetToolkit.UTF8_CHARSET);
+    }
+    assertEquals(2, myMapCount);
+
+    // the index is rebuilt, so the stored input map must not be served any more
+    myIndexer.clear();
+    map("content", PlainTextFileType.INSTANCE, CharsetToolkit.UTF8_CHARSET);
+    assertEquals(3, myMapCount);
+  }
+
+  public void testOtherVersionMisses() throws Exception {
+    for (int i = 0; i < 3; i++) {
+      map("content", PlainTextFileType.INSTANCE, CharsetToolkit.UTF8_CHARSET);
+    }
+    assertEquals(2, myMapCount);
+
+    myIndexer.dispose();
+    myIndexer = createIndexer(2);
+    map("content", PlainTextFileType.INSTANCE, CharsetToolkit.UTF8_CHARSET);
+    assertEquals(3, myMapCount);
+  }
+
+  public void testMappingsAreDroppedWhenTooBig() throws Exception {
+    myIndexer.dispose();
+    myIndexer = new ContentHashIndexer<String, Integer>("test", 1, new DataIndexer<String, Integer, FileContent>() {
+      @NotNull
+      @Override
+      public Map<String, Integer> map(FileContent inputData) {
+        myMapCount++;
+        return Collections.emptyMap();
+      }
+    }, new EnumeratorStringDescriptor(), EnumeratorIntegerDescriptor.INSTANCE, myFile, 0);
+
+    map("content", PlainTextFileType.INSTANCE, null);
+    map("content", PlainTextFileType.INSTANCE, null);
+    map("content", PlainTextFileType.INSTANCE, null);
+    assertEquals(2, myMapCount);
+
+    for (int i = 0; i < 2000; i++) {
+      map("content" + i, PlainTextFileType.INSTANCE, null);
+    }
+    myMapCount = 0;
+    map("content", PlainTextFileType.INSTANCE, null);
+    assertEquals(1, myMapCount);
+  }
+
+  public void testContentWithoutHashIsAlwaysMapped() {
+    for (int i = 0; i < 3; i++) {
+      myIndexer.map(new TestFileContent("content".getBytes(CharsetToolkit.UTF8_CHARSET)));
+    }
+    assertEquals(3, myMapCount);
+  }
+
+  @NotNull
+  private Map<String, Integer> map(@NotNull String text, @NotNull FileType fileType, Charset charset) {
+    final byte[] content = text.getBytes(CharsetToolkit.UTF8_CHARSET);
+    final TestFileContent fc = new TestFileContent(content);
+    fc.putUserData(ContentHashIndexer.CONTENT_HASH, ContentHashIndexer.calculateHash(content, fileType, null, charset));
+    return myIndexer.map(fc);
+  }
+
+  private static class TestFileContent extends UserDataHolderBase implements FileContent {
+    private final byte[] myContent;
+
+    private TestFileContent(@NotNull byte[] content) {
+      myContent = content;
+    }
+
+    @Override
+    public byte[] getContent() {
+      return myContent;
+    }
+
+    @NotNull
+    @Override
+    public FileType getFileType() {
+      throw new UnsupportedOperationException();
+    }
+
+    @NotNull
+    @Override
+    public VirtualFile getFile() {
+      throw new UnsupportedOperationException();
+    }
+
+    @NotNull
+    @Override
+    public String getFileName() {
+      throw new UnsupportedOperationException();
+    }
+
+    @NotNull
+    @Override
+    public CharSequence getContentAsText() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Project getProject() {
+      throw new UnsupportedOperationException();
+    }
+
+    @NotNull
+    @Override
+    public PsiFile getPsiFile() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
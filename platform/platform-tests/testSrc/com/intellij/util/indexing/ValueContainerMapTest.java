@@ -0,0 +1,150 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.DataInputOutputUtil;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import com.intellij.util.io.PersistentHashMap;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataOutput;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class ValueContainerMapTest extends TestCase {
+  private static final EnumeratorStringDescriptor DESCRIPTOR = new EnumeratorStringDescriptor();
+
+  private File myFile;
+  private ValueContainerMap<String, String> myMap;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myFile = FileUtil.createTempFile("valueContainer", "map");
+    myMap = createMap();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    myMap.close();
+    final File[] files = myFile.getParentFile().listFiles(new FileFilter() {
+      @Override
+      public boolean accept(final File pathname) {
+        return pathname.getName().startsWith(myFile.getName());
+      }
+    });
+    if (files != null) {
+      for (File file : files) {
+        FileUtil.delete(file);
+      }
+    }
+    super.tearDown();
+  }
+
+  public void testRoundTrip() throws IOException {
+    ChangeTrackingValueContainer<String> container = createContainer();
+    addIds(container, "sorted", 1, 2, 3, 100, 1000, 1001);
+    addIds(container, "unsorted", 500, 3, 70000, 42, Integer.MAX_VALUE, 1);
+    addIds(container, "single", 7);
+    myMap.put("key", container);
+
+    reopen();
+    ValueContainer<String> read = myMap.get("key");
+    assertEquals(3, read.size());
+    assertIds(read, "sorted", 1, 2, 3, 100, 1000, 1001);
+    assertIds(read, "unsorted", 500, 3, 70000, 42, Integer.MAX_VALUE, 1);
+    assertIds(read, "single", 7);
+  }
+
+  public void testReadLegacyRecord() throws IOException {
+    // ids of every value written one by one, as the index did before the posting lists were delta-encoded
+    myMap.appendData("key", new PersistentHashMap.ValueDataAppender() {
+      @Override
+      public void append(@NotNull DataOutput out) throws IOException {
+        DataInputOutputUtil.writeSINT(out, 2);
+        DESCRIPTOR.save(out, "legacy");
+        DataInputOutputUtil.writeSINT(out, 3);
+        DataInputOutputUtil.writeSINT(out, 5);
+        DataInputOutputUtil.writeSINT(out, 2);
+        DataInputOutputUtil.writeSINT(out, 9);
+        DESCRIPTOR.save(out, "legacySingle");
+        DataInputOutputUtil.writeSINT(out, 1);
+        DataInputOutputUtil.writeSINT(out, 4);
+      }
+    });
+    ChangeTrackingValueContainer<String> container = createContainer();
+    addIds(container, "legacy", 6);
+    addIds(container, "added", 11, 10);
+    myMap.put("key", container);
+
+    reopen();
+    ValueContainer<String> read = myMap.get("key");
+    assertEquals(3, read.size());
+    assertIds(read, "legacy", 2, 5, 6, 9);
+    assertIds(read, "legacySingle", 4);
+    assertIds(read, "added", 10, 11);
+  }
+
+  private ValueContainerMap<String, String> createMap() throws IOException {
+    return new ValueContainerMap<String, String>(myFile, DESCRIPTOR, DESCRIPTOR);
+  }
+
+  private void reopen() throws IOException {
+    myMap.close();
+    myMap = createMap();
+  }
+
+  @NotNull
+  private static ChangeTrackingValueContainer<String> createContainer() {
+    final Object lock = new Object();
+    return new ChangeTrackingValueContainer<String>(new ChangeTrackingValueContainer.Initializer<String>() {
+      @Override
+      public Object getLock() {
+        return lock;
+      }
+
+      @Override
+      public ValueContainer<String> compute() {
+        return new ValueContainerImpl<String>();
+      }
+    });
+  }
+
+  private static void addIds(@NotNull ValueContainer<String> container, @NotNull String value, int... ids) {
+    for (int id : ids) {
+      ((UpdatableValueContainer<String>)container).addValue(id, value);
+    }
+  }
+
+  private static void assertIds(@NotNull ValueContainer<String> container, @NotNull String value, int... expected) {
+    ValueContainer.IntIterator iterator = container.getInputIdsIterator(value);
+    int[] actual = new int[iterator.size()];
+    for (int i = 0; i < actual.length; i++) {
+      assertTrue(iterator.hasNext());
+      actual[i] = iterator.next();
+    }
+    assertFalse(iterator.hasNext());
+
+    int[] sortedExpected = expected.clone();
+    Arrays.sort(sortedExpected);
+    Arrays.sort(actual);
+    assertEquals(Arrays.toString(sortedExpected), Arrays.toString(actual));
+  }
+}
@@ -24,6 +24,7 @@ import com.intellij.openapi.vfs.LocalFileSystem;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.openapi.vfs.VirtualFileWithId;
 import com.intellij.openapi.vfs.newvfs.NewVirtualFile;
+import com.intellij.openapi.vfs.newvfs.persistent.FSRecords;
 import com.intellij.openapi.vfs.newvfs.persistent.PersistentFS;
 import com.intellij.testFramework.PlatformTestCase;
 
@@ -54,6 +55,61 @@ public class PersistentFSTest extends PlatformTestCase {
     assertNull(PersistentFS.getInstance().findFileById(id));
   }
 
+  public void testGetIdOfPersistedChildren() throws IOException {
+    File dir = createTempDirectory();
+    for (int i = 0; i < 10; i++) {
+      assertTrue(new File(dir, "file" + i + ".txt").createNewFile());
+    }
+
+    VirtualFile vDir = LocalFileSystem.getInstance().refreshAndFindFileByIoFile(dir);
+    assertNotNull(vDir);
+    VirtualFile[] children = vDir.getChildren();
+    assertEquals(10, children.length);
+
+    PersistentFS fs = PersistentFS.getInstance();
+    for (VirtualFile child : children) {
+      assertEquals(((VirtualFileWithId)child).getId(), fs.getId(vDir, child.getName(), LocalFileSystem.getInstance()));
+    }
+    String missingName = "missing" + System.nanoTime() + ".txt";
+    assertEquals(0, fs.getId(vDir, missingName, LocalFileSystem.getInstance()));
+    assertEquals("probing a missing child must not enumerate its name", 0, FSRecords.findNameId(missingName));
+  }
+
+  public void testGetIdOfChildrenOfBigDirectory() throws IOException {
+    File dir = createTempDirectory();
+    for (int i = 0; i < 200; i++) {
+      assertTrue(new File(dir, "file" + i + ".txt").createNewFile());
+    }
+
+    VirtualFile vDir = LocalFileSystem.getInstance().refreshAndFindFileByIoFile(dir);
+    assertNotNull(vDir);
+    VirtualFile[] children = vDir.getChildren();
+    assertEquals(200, children.length);
+
+    PersistentFS fs = PersistentFS.getInstance();
+    LocalFileSystem lfs = LocalFileSystem.getInstance();
+    for (VirtualFile child : children) {
+      assertEquals(((VirtualFileWithId)child).getId(), fs.getId(vDir, child.getName(), lfs));
+    }
+    assertEquals(0, fs.getId(vDir, "missing.txt", lfs));
+
+    VirtualFile file = vDir.findChild("file7.txt");
+    assertNotNull(file);
+    int id = ((VirtualFileWithId)file).getId();
+    if (!SystemInfo.isFileSystemCaseSensitive) {
+      assertEquals(id, fs.getId(vDir, "FILE7.TXT", lfs));
+    }
+
+    file.rename(this, "renamed.txt");
+    assertEquals(id, fs.getId(vDir, "renamed.txt", lfs));
+    assertEquals(0, fs.getId(vDir, "file7.txt", lfs));
+
+    assertTrue(new File(dir, "added.txt").createNewFile());
+    int addedId = fs.getId(vDir, "added.txt", lfs);
+    assertTrue(addedId > 0);
+    assertEquals(addedId, fs.getId(vDir, "added.txt", lfs));
+  }
+
   public void testListChildrenOfTheRootOfTheRoot() {
     PersistentFS fs = PersistentFS.getInstance();
     NewVirtualFile fakeRoot = fs.findRoot("", LocalFileSystem.getInstance());
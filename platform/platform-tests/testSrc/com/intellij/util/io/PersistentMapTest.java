@@ -210,6 +210,124 @@ public class PersistentMapTest extends TestCase {
     }
   }
 
+  private static final PersistentHashMap.CompactionCondition ALWAYS = new PersistentHashMap.CompactionCondition() {
+    @Override
+    public boolean shouldContinue() {
+      return true;
+    }
+  };
+
+  public void testCompactIfNecessary() throws IOException {
+    final String value = StringUtil.repeatSymbol('v', 32 * 1024);
+    final int keysCount = 200;
+    for (int i = 0; i < keysCount; ++i) {
+      myMap.put(String.valueOf(i), value);
+    }
+    assertFalse(myMap.compactIfNecessary(ALWAYS));
+    assertEquals(keysCount, myMap.getLiveKeysCount());
+
+    final int removedCount = 150;
+    for (int i = 0; i < removedCount; ++i) {
+      myMap.remove(String.valueOf(i));
+    }
+    assertEquals(keysCount - removedCount, myMap.getLiveKeysCount());
+    assertEquals(removedCount, myMap.getGarbageKeysCount());
+    final long sizeBefore = myMap.getValueStorageSize();
+    assertTrue(myMap.getGarbageSizeEstimate() > sizeBefore / 2);
+
+    assertTrue(myMap.compactIfNecessary(ALWAYS));
+    assertEquals(keysCount - removedCount, myMap.getLiveKeysCount());
+    assertEquals(0, myMap.getGarbageKeysCount());
+    assertEquals(0, myMap.getGarbageSizeEstimate());
+    assertTrue(myMap.getValueStorageSize() < sizeBefore);
+    assertFalse(myMap.compactIfNecessary(ALWAYS));
+
+    for (int i = 0; i < keysCount; ++i) {
+      assertEquals(i < removedCount ? null : value, myMap.get(String.valueOf(i)));
+    }
+  }
+
+  public void testCompactIfNecessaryWithChangesWhileCopying() throws IOException {
+    final String value = StringUtil.repeatSymbol('v', 32 * 1024);
+    final int keysCount = 200;
+    for (int i = 0; i < keysCount; ++i) {
+      myMap.put(String.valueOf(i), value);
+    }
+    final int removedCount = 150;
+    for (int i = 0; i < removedCount; ++i) {
+      myMap.remove(String.valueOf(i));
+    }
+
+    final int[] steps = {0};
+    assertTrue(myMap.compactIfNecessary(new PersistentHashMap.CompactionCondition() {
+      @Override
+      public boolean shouldContinue() {
+        if (steps[0]++ == 1) {
+          // the values of the first step are already copied, the map must be usable meanwhile
+          try {
+            assertEquals(value, myMap.get("150"));
+            myMap.put("150", "changed after copying");
+            myMap.put("199", "changed before copying");
+            myMap.remove("198");
+            myMap.put("new", "added");
+          }
+          catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+        }
+        return true;
+      }
+    }));
+    assertTrue("values should be copied in several steps", steps[0] > 1);
+
+    assertEquals(keysCount - removedCount, myMap.getLiveKeysCount());
+    assertEquals(0, myMap.getGarbageKeysCount());
+    assertEquals("changed after copying", myMap.get("150"));
+    assertEquals("changed before copying", myMap.get("199"));
+    assertNull(myMap.get("198"));
+    assertEquals("added", myMap.get("new"));
+    for (int i = 151; i < 198; ++i) {
+      assertEquals(value, myMap.get(String.valueOf(i)));
+    }
+
+    myMap.close();
+    myMap = new PersistentHashMap<String, String>(myFile, new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor());
+    assertEquals("changed after copying", myMap.get("150"));
+    assertEquals(value, myMap.get("151"));
+    assertEquals("added", myMap.get("new"));
+  }
+
+  public void testAbandonedCompaction() throws IOException {
+    final String value = StringUtil.repeatSymbol('v', 32 * 1024);
+    final int keysCount = 200;
+    for (int i = 0; i < keysCount; ++i) {
+      myMap.put(String.valueOf(i), value);
+    }
+    final int removedCount = 150;
+    for (int i = 0; i < removedCount; ++i) {
+      myMap.remove(String.valueOf(i));
+    }
+    final long sizeBefore = myMap.getValueStorageSize();
+
+    assertFalse(myMap.compactIfNecessary(new PersistentHashMap.CompactionCondition() {
+      @Override
+      public boolean shouldContinue() {
+        return false;
+      }
+    }));
+    assertFalse(new File(myDataFile.getPath() + ".new").exists());
+    assertEquals(sizeBefore, myMap.getValueStorageSize());
+    assertEquals(removedCount, myMap.getGarbageKeysCount());
+    for (int i = removedCount; i < keysCount; ++i) {
+      assertEquals(value, myMap.get(String.valueOf(i)));
+    }
+
+    assertTrue(myMap.compactIfNecessary(ALWAYS));
+    for (int i = 0; i < keysCount; ++i) {
+      assertEquals(i < removedCount ? null : value, myMap.get(String.valueOf(i)));
+    }
+  }
+
   public void testOpeningWithCompact2() throws IOException {
     File file = FileUtil.createTempFile("persistent", "map");
 
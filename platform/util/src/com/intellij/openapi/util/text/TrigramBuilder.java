@@ -21,8 +21,10 @@ package com.intellij.openapi.util.text;
 
 import gnu.trove.TIntHashSet;
 import gnu.trove.TIntObjectHashMap;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
@@ -56,6 +58,214 @@ public class TrigramBuilder {
     return caseInsensitive;
   }
 
+  /**
+   * Builds trigrams which occur in any text matched by the given regular expression. Only literal runs outside of groups,
+   * character classes and optional parts are taken into account, so the result is usually a subset of the trigrams of the match;
+   * it's empty when nothing can be guaranteed, e.g. for alternatives at the top level.
+   */
+  public static TIntHashSet buildRegExpTrigram(String regExp) {
+    List<String> literals = getRequiredLiterals(regExp);
+    if (literals == null) return new TIntHashSet();
+
+    TIntHashSet result = new TIntHashSet();
+    for (String literal : literals) {
+      result.addAll(buildTrigram(literal).toArray());
+    }
+    return result;
+  }
+
+  @Nullable
+  private static List<String> getRequiredLiterals(String regExp) {
+    List<String> literals = new ArrayList<String>();
+    StringBuilder current = new StringBuilder();
+    int length = regExp.length();
+    int i = 0;
+    while (i < length) {
+      char c = regExp.charAt(i);
+      if (c == '|') {
+        return null;
+      }
+      if (c == '(' || c == '[') {
+        if (c == '(' && hasCommentsFlag(regExp, i)) return null;
+        flushLiteral(current, literals);
+        int end = c == '(' ? skipGroup(regExp, i) : skipCharClass(regExp, i);
+        if (end < 0) return null;
+        i = skipQuantifier(regExp, end);
+        continue;
+      }
+      if (c == '.' || c == '^' || c == '$') {
+        flushLiteral(current, literals);
+        i = skipQuantifier(regExp, i + 1);
+        continue;
+      }
+      if (c == '*' || c == '+' || c == '?' || c == '{') {
+        return null; // dangling quantifier
+      }
+
+      int next = i + 1;
+      if (c == '\\') {
+        if (next >= length) return null;
+        char escaped = regExp.charAt(next);
+        if (escaped == 'Q') {
+          int end = regExp.indexOf("\\E", next + 1);
+          String quoted = end < 0 ? regExp.substring(next + 1) : regExp.substring(next + 1, end);
+          if (end < 0 || quoted.isEmpty()) {
+            current.append(quoted);
+            i = length;
+            continue;
+          }
+          // the last quoted character may be followed by a quantifier
+          current.append(quoted, 0, quoted.length() - 1);
+          c = quoted.charAt(quoted.length() - 1);
+          next = end + 2;
+        }
+        else if (Character.isLetterOrDigit(escaped)) {
+          flushLiteral(current, literals);
+          i = skipQuantifier(regExp, skipLetterEscape(regExp, next));
+          continue;
+        }
+        else {
+          c = escaped;
+          next++;
+        }
+      }
+
+      int afterQuantifier = skipQuantifier(regExp, next);
+      if (afterQuantifier == next) {
+        current.append(c);
+      }
+      else {
+        if (isRequiredRepetition(regExp, next)) current.append(c);
+        flushLiteral(current, literals);
+      }
+      i = afterQuantifier;
+    }
+    flushLiteral(current, literals);
+    return literals;
+  }
+
+  private static void flushLiteral(StringBuilder current, List<String> literals) {
+    if (current.length() >= 3) {
+      literals.add(current.toString());
+    }
+    current.setLength(0);
+  }
+
+  private static boolean hasCommentsFlag(String regExp, int groupStart) {
+    // (?x) makes whitespace in the pattern insignificant, so literal runs can't be taken as is
+    if (!regExp.startsWith("(?", groupStart)) return false;
+    for (int i = groupStart + 2; i < regExp.length(); i++) {
+      char c = regExp.charAt(i);
+      if (c == 'x') return true;
+      if (c != '-' && !Character.isLetter(c)) return false;
+    }
+    return false;
+  }
+
+  private static int skipGroup(String regExp, int start) {
+    int depth = 0;
+    int i = start;
+    while (i < regExp.length()) {
+      char c = regExp.charAt(i);
+      if (c == '\\') {
+        i += 2;
+        continue;
+      }
+      if (c == '[') {
+        i = skipCharClass(regExp, i);
+        if (i < 0) return -1;
+        continue;
+      }
+      if (c == '(') depth++;
+      if (c == ')' && --depth == 0) return i + 1;
+      i++;
+    }
+    return -1;
+  }
+
+  private static int skipCharClass(String regExp, int start) {
+    int depth = 0;
+    int i = start;
+    while (i < regExp.length()) {
+      char c = regExp.charAt(i);
+      if (c == '\\') {
+        i += 2;
+        continue;
+      }
+      if (c == '[') {
+        depth++;
+        // ']' right after the opening bracket (or its negation) is a literal
+        if (regExp.startsWith("^", i + 1)) i++;
+        if (regExp.startsWith("]", i + 1)) i++;
+      }
+      else if (c == ']' && --depth == 0) {
+        return i + 1;
+      }
+      i++;
+    }
+    return -1;
+  }
+
+  private static int skipLetterEscape(String regExp, int letter) {
+    char c = regExp.charAt(letter);
+    int i = letter + 1;
+    switch (c) {
+      case 'x':
+        if (regExp.startsWith("{", i)) return skipPast(regExp, i, '}');
+        return Math.min(i + 2, regExp.length());
+      case 'u':
+        return Math.min(i + 4, regExp.length());
+      case 'c':
+        return Math.min(i + 1, regExp.length());
+      case 'p':
+      case 'P':
+        if (regExp.startsWith("{", i)) return skipPast(regExp, i, '}');
+        return Math.min(i + 1, regExp.length());
+      case 'k':
+        return regExp.startsWith("<", i) ? skipPast(regExp, i, '>') : i;
+      case '0':
+        for (int n = 0; n < 3 && i < regExp.length() && regExp.charAt(i) >= '0' && regExp.charAt(i) <= '7'; n++) i++;
+        return i;
+      default:
+        if (Character.isDigit(c)) { // back reference
+          while (i < regExp.length() && Character.isDigit(regExp.charAt(i))) i++;
+        }
+        return i;
+    }
+  }
+
+  private static int skipPast(String regExp, int start, char c) {
+    int end = regExp.indexOf(c, start);
+    return end < 0 ? regExp.length() : end + 1;
+  }
+
+  private static int skipQuantifier(String regExp, int start) {
+    if (start >= regExp.length()) return start;
+    char c = regExp.charAt(start);
+    int i;
+    if (c == '*' || c == '+' || c == '?') {
+      i = start + 1;
+    }
+    else if (c == '{') {
+      i = skipPast(regExp, start, '}');
+    }
+    else {
+      return start;
+    }
+    // reluctant or possessive quantifier
+    if (i < regExp.length() && (regExp.charAt(i) == '?' || regExp.charAt(i) == '+')) i++;
+    return i;
+  }
+
+  private static boolean isRequiredRepetition(String regExp, int quantifier) {
+    char c = regExp.charAt(quantifier);
+    if (c == '+') return true;
+    if (c != '{') return false;
+    int i = quantifier + 1;
+    while (i < regExp.length() && regExp.charAt(i) == '0') i++;
+    return i < regExp.length() && Character.isDigit(regExp.charAt(i));
+  }
+
   private static final TIntHashSet blackList = new TIntHashSet(
     new int[]{2105391, 2105376, 3158061, 2105458, 2105408, 2105469, 2105446, 2105459, 2105443, 2105404, 2105445, 2105661, 2105453, 2105932,
       2105449, 7369833, 7367785, 7367781, 7366958, 7366002, 7365998, 7365987, 7365920, 7364978, 7364963, 3153960, 5267826, 6845039, 6845556,
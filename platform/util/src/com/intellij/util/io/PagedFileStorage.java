@@ -442,7 +442,16 @@ public class PagedFileStorage implements Forceable {
 
     private final LinkedHashMap<Integer, ByteBufferWrapper> mySegments;
     private final SequenceLock mySegmentsAccessLock = new SequenceLock(); // protects map operations of mySegments, needed for LRU order, mySize and myMappingChangeCount
-    // todo avoid locking for access
+    // mirror of mySegments for lookups of already mapped segments without taking mySegmentsAccessLock, modified under it
+    private final ConcurrentIntObjectMap<ByteBufferWrapper> myMappedSegments = new StripedLockIntObjectConcurrentHashMap<ByteBufferWrapper>();
+    // LRU order of mySegments is refreshed on every LRU_TOUCH_SAMPLING-th fast path hit of a thread, so that hits don't contend on the access lock
+    private static final int LRU_TOUCH_SAMPLING = 16;
+    private final ThreadLocal<int[]> myHitCount = new ThreadLocal<int[]>() {
+      @Override
+      protected int[] initialValue() {
+        return new int[1];
+      }
+    };
 
     private final SequenceLock mySegmentsAllocationLock = new SequenceLock();
     private final ConcurrentLinkedQueue<ByteBufferWrapper> mySegmentsToRemove = new ConcurrentLinkedQueue<ByteBufferWrapper>();
@@ -470,6 +479,7 @@ public class PagedFileStorage implements Forceable {
           // this method can be called after removeEldestEntry
           ByteBufferWrapper wrapper = super.remove(key);
           if (wrapper != null) {
+            myMappedSegments.remove((Integer)key);
             ++myMappingChangeCount;
             mySegmentsToRemove.offer(wrapper);
             mySize -= wrapper.myLength;
@@ -504,14 +514,18 @@ public class PagedFileStorage implements Forceable {
     }
 
     private ByteBufferWrapper get(Integer key) {
-      ByteBufferWrapper wrapper;
-      try {         // fast path
-        mySegmentsAccessLock.lock();
-        wrapper = mySegments.get(key);
-        if (wrapper != null) return wrapper;
-      }
-      finally {
-        mySegmentsAccessLock.unlock();
+      ByteBufferWrapper wrapper = myMappedSegments.get(key);
+      if (wrapper != null) { // fast path
+        // LRU order is only updated for sampled hits and when nobody else is holding the lock, so it is approximate
+        if ((++myHitCount.get()[0] & (LRU_TOUCH_SAMPLING - 1)) == 0 && mySegmentsAccessLock.tryLock()) {
+          try {
+            mySegments.get(key);
+          }
+          finally {
+            mySegmentsAccessLock.unlock();
+          }
+        }
+        return wrapper;
       }
 
       mySegmentsAllocationLock.lock();
@@ -538,6 +552,7 @@ public class PagedFileStorage implements Forceable {
 
         mySegmentsAccessLock.lock();
         try {
+          myMappedSegments.put(key, wrapper);
           mySegments.put(key, wrapper);
           mySize += wrapper.myLength;
         }
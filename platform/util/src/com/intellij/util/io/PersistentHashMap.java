@@ -24,15 +24,14 @@ import com.intellij.util.Processor;
 import com.intellij.util.containers.LimitedPool;
 import com.intellij.util.containers.SLRUCache;
 import com.intellij.util.containers.hash.EqualityPolicy;
+import gnu.trove.TIntHashSet;
+import gnu.trove.TIntObjectHashMap;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
-import org.jetbrains.annotations.TestOnly;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
+import java.util.*;
 
 /**
  * @author Eugene Zhuravlev
@@ -65,6 +64,10 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   private int myLargeIndexWatermarkId;  // starting with this id we store offset in adjacent file in long format
   private boolean myIntAddressForNewRecord;
   private static final boolean doHardConsistencyChecks = true;
+  private static final int COMPACTION_STEP_RECORDS = 1000;
+  private static final int COMPACTION_STEP_BYTES = 1024 * 1024;
+  // not null while compactIfNecessary() copies the values outside the map lock, guarded by the map lock
+  @Nullable private CompactionChanges<Key> myCompactionChanges;
 
   private static class AppendStream extends DataOutputStream {
     private AppendStream() {
@@ -249,11 +252,226 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
     return (int)myLiveAndGarbageKeysCounter;
   }
 
+  public int getLiveKeysCount() {
+    synchronized (myEnumerator) {
+      return (int)(myLiveAndGarbageKeysCounter / LIVE_KEY_MASK);
+    }
+  }
+
+  public int getGarbageKeysCount() {
+    synchronized (myEnumerator) {
+      return (int)(myLiveAndGarbageKeysCounter & DEAD_KEY_NUMBER_MASK);
+    }
+  }
+
+  /**
+   * @return size of the values which were found to be superseded by appended data while reading
+   */
+  public int getReadCompactionGarbageSize() {
+    synchronized (myEnumerator) {
+      return myReadCompactionGarbageSize;
+    }
+  }
+
+  public long getValueStorageSize() {
+    synchronized (myEnumerator) {
+      return myValueStorage.getSize();
+    }
+  }
+
+  /**
+   * @return approximate size of the values which are not reachable from the keys anymore
+   */
+  public long getGarbageSizeEstimate() {
+    synchronized (myEnumerator) {
+      final int liveKeys = (int)(myLiveAndGarbageKeysCounter / LIVE_KEY_MASK);
+      final int deadKeys = (int)(myLiveAndGarbageKeysCounter & DEAD_KEY_NUMBER_MASK);
+      if (liveKeys + deadKeys == 0) return 0;
+      final long avgValueSize = myValueStorage.getSize() / (liveKeys + deadKeys);
+      return Math.min(myValueStorage.getSize(), avgValueSize * deadKeys + myReadCompactionGarbageSize);
+    }
+  }
+
+  public interface CompactionCondition {
+    /**
+     * Called outside of the map lock before every compaction step.
+     * @return false to abandon the compaction, the map is left as it was
+     */
+    boolean shouldContinue();
+  }
+
+  /**
+   * Compacts the value storage of the opened map if it is worth it, see {@link #makesSenseToCompact()}.
+   * <p/>
+   * Unlike {@link #compact()}, the live values are copied into a new file in bounded steps without holding the map lock,
+   * so the map stays usable meanwhile. The map lock is taken only to collect the live records, and to switch to the new file at the end;
+   * values written while copying are copied once more at that point.
+   * @return true if the map was compacted
+   */
+  public boolean compactIfNecessary(@NotNull CompactionCondition condition) throws IOException {
+    final PersistentHashMapValueStorage storage;
+    final PersistentHashMapValueStorage reader;
+    final List<CompactionRecordInfo> infos = new ArrayList<CompactionRecordInfo>();
+    synchronized (myEnumerator) {
+      if (isClosed() || myCompactionChanges != null) return false;
+      myEnumerator.lockStorage();
+      try {
+        clearAppenderCaches();
+      }
+      finally {
+        myEnumerator.unlockStorage();
+      }
+      if (!makesSenseToCompact()) return false;
+
+      LOG.info("Compacting " + myEnumerator.myFile.getPath() + " in background: " + myValueStorage.getSize() + " bytes, about " +
+               getGarbageSizeEstimate() + " bytes of garbage");
+      storage = myValueStorage;
+      collectLiveRecords(infos);
+      reader = PersistentHashMapValueStorage.openForReading(getDataFile(myEnumerator.myFile).getPath());
+      myCompactionChanges = new CompactionChanges<Key>();
+    }
+
+    final long started = System.currentTimeMillis();
+    final File newFile = new File(getDataFile(myEnumerator.myFile).getPath() + ".new");
+    FileUtil.delete(newFile); // left by an abandoned compaction
+    PersistentHashMapValueStorage newStorage = null;
+    boolean completed = false;
+    try {
+      newStorage = PersistentHashMapValueStorage.create(newFile.getPath());
+
+      // values are copied in the order of their addresses, so the old file is read mostly sequentially
+      Collections.sort(infos, new Comparator<CompactionRecordInfo>() {
+        @Override
+        public int compare(CompactionRecordInfo o1, CompactionRecordInfo o2) {
+          return o1.valueAddress < o2.valueAddress ? -1 : o1.valueAddress > o2.valueAddress ? 1 : 0;
+        }
+      });
+      long liveSize = 0;
+      int index = 0;
+      while (index < infos.size()) {
+        if (!condition.shouldContinue() || isClosed()) {
+          LOG.info("Compaction of " + myEnumerator.myFile.getPath() + " abandoned");
+          return false;
+        }
+        final int stepEnd = Math.min(index + COMPACTION_STEP_RECORDS, infos.size());
+        for (long stepSize = 0; index < stepEnd && stepSize < COMPACTION_STEP_BYTES; index++) {
+          final CompactionRecordInfo info = infos.get(index);
+          final byte[] value = reader.readBytes(info.valueAddress).buffer;
+          info.newValueAddress = newStorage.appendBytes(value, 0, value.length, 0);
+          stepSize += value.length;
+          liveSize += value.length;
+        }
+      }
+
+      synchronized (myEnumerator) {
+        final CompactionChanges<Key> changes = myCompactionChanges;
+        myCompactionChanges = null;
+        if (isClosed() || myValueStorage != storage) return false;
+
+        myEnumerator.lockStorage();
+        try {
+          int liveKeys = 0;
+          for (CompactionRecordInfo info : infos) {
+            if (changes.isChanged(info.address)) continue;
+            updateValueId(info.address, info.newValueAddress, info.valueAddress, null, info.key);
+            ++liveKeys;
+          }
+          liveKeys += copyChangedValues(changes, newStorage);
+
+          final long sizeBefore = storage.getSize();
+          final long newSize = newStorage.getSize();
+          newStorage.dispose();
+          newStorage = null;
+          storage.dispose();
+          reader.dispose();
+          FileUtil.rename(newFile, getDataFile(myEnumerator.myFile));
+          myValueStorage = PersistentHashMapValueStorage.create(getDataFile(myEnumerator.myFile).getPath());
+
+          myLiveAndGarbageKeysCounter = liveKeys * LIVE_KEY_MASK;
+          myReadCompactionGarbageSize = 0;
+          myEnumerator.putMetaData(myLiveAndGarbageKeysCounter);
+          myEnumerator.putMetaData2(myLargeIndexWatermarkId);
+          completed = true;
+          LOG.info("Compacted " + myEnumerator.myFile.getPath() + ": " + sizeBefore + " bytes into " + newSize + " bytes in " +
+                   (System.currentTimeMillis() - started) + "ms, live values: " + liveSize + " bytes, garbage: " + (sizeBefore - liveSize) +
+                   " bytes, values changed while copying: " + changes.myUpdatedKeys.size());
+          return true;
+        }
+        finally {
+          myEnumerator.unlockStorage();
+        }
+      }
+    }
+    finally {
+      if (!completed) {
+        synchronized (myEnumerator) {
+          myCompactionChanges = null;
+        }
+        reader.dispose();
+        if (newStorage != null) {
+          newStorage.dispose();
+        }
+        FileUtil.delete(newFile);
+      }
+    }
+  }
+
+  private void collectLiveRecords(@NotNull final List<CompactionRecordInfo> infos) throws IOException {
+    traverseAllRecords(new PersistentEnumerator.RecordsProcessor() {
+      @Override
+      public boolean process(final int keyId) throws IOException {
+        final long record = readValueId(keyId);
+        if (record != NULL_ADDR) {
+          infos.add(new CompactionRecordInfo(getCurrentKey(), record, keyId));
+        }
+        return true;
+      }
+    });
+  }
+
+  /**
+   * Should be called under the map lock, copies the values which were changed after the live records were collected.
+   * @return number of the live keys among the changed ones
+   */
+  private int copyChangedValues(@NotNull CompactionChanges<Key> changes, @NotNull PersistentHashMapValueStorage newStorage)
+    throws IOException {
+    if (changes.myUpdatedKeys.isEmpty()) return 0;
+
+    myValueStorage.force();
+    final PersistentHashMapValueStorage reader = PersistentHashMapValueStorage.openForReading(getDataFile(myEnumerator.myFile).getPath());
+    try {
+      int liveKeys = 0;
+      for (int keyId : changes.myUpdatedKeys.keys()) {
+        if (changes.mySupersededIds.contains(keyId)) continue;
+        final long record = readValueId(keyId);
+        if (record == NULL_ADDR) continue;
+
+        final byte[] value = reader.readBytes(record).buffer;
+        updateValueId(keyId, newStorage.appendBytes(value, 0, value.length, 0), record, changes.myUpdatedKeys.get(keyId), 0);
+        ++liveKeys;
+      }
+      return liveKeys;
+    }
+    finally {
+      reader.dispose();
+    }
+  }
+
+  private static class CompactionChanges<Key> {
+    // ids of the records which values were updated after the live records were collected, with their keys
+    private final TIntObjectHashMap<Key> myUpdatedKeys = new TIntObjectHashMap<Key>();
+    // ids of the records which were replaced by re-enumeration of their keys
+    private final TIntHashSet mySupersededIds = new TIntHashSet();
+
+    private boolean isChanged(int keyId) {
+      return myUpdatedKeys.containsKey(keyId) || mySupersededIds.contains(keyId);
+    }
+  }
+
   public File getBaseFile() {
     return myEnumerator.myFile;
   }
 
-  @TestOnly // public for tests
   public boolean makesSenseToCompact() {
     final long fileSize = getDataFile(myEnumerator.myFile).length();
     final int megabyte = 1024 * 1024;
@@ -678,6 +896,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   private int requests;
 
   private int updateValueId(int keyId, long value, long oldValue, @Nullable Key key, int processingKey) throws IOException {
+    final int originalKeyId = keyId;
     final boolean newKey = oldValue == NULL_ADDR;
     if (newKey) ++requests;
     boolean defaultSizeInfo = true;
@@ -715,6 +934,12 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
         assert false:value;
       }
     }
+    if (myCompactionChanges != null) {
+      if (keyId != originalKeyId) {
+        myCompactionChanges.mySupersededIds.add(originalKeyId);
+      }
+      myCompactionChanges.myUpdatedKeys.put(keyId, key);
+    }
     return keyId;
   }
 }
@@ -37,6 +37,7 @@ public class PersistentHashMapValueStorage {
   private final File myFile;
   private final String myPath;
   private boolean myCompactionMode = false;
+  private boolean myReadOnly = false;
 
   private static final int CACHE_PROTECTED_QUEUE_SIZE = 10;
   private static final int CACHE_PROBATIONAL_QUEUE_SIZE = 20;
@@ -289,7 +290,7 @@ public class PersistentHashMapValueStorage {
    * Reads bytes pointed by tailChunkAddress into result passed, returns new address if linked list compactification have been performed
    */
   public ReadResult readBytes(long tailChunkAddress) throws IOException {
-    force();
+    if (!myReadOnly) force();
 
     long chunk = tailChunkAddress;
     int chunkCount = 0;
@@ -395,8 +396,10 @@ public class PersistentHashMapValueStorage {
 
   public void dispose() {
     if (mySize < 0) assert false; // volatile read
-    ourReadersCache.remove(myPath);
-    ourAppendersCache.remove(myPath);
+    if (!myReadOnly) {
+      ourReadersCache.remove(myPath);
+      ourAppendersCache.remove(myPath);
+    }
 
     if (myCompactionModeReader != null) {
       myCompactionModeReader.dispose();
@@ -415,6 +418,18 @@ public class PersistentHashMapValueStorage {
     return new PersistentHashMapValueStorage(path);
   }
 
+  /**
+   * Opens the storage for reading the values appended before this call while another instance continues appending to it.
+   * The returned instance uses a file reader of its own and doesn't touch the shared appenders.
+   */
+  static PersistentHashMapValueStorage openForReading(final String path) throws IOException {
+    final PersistentHashMapValueStorage storage = new PersistentHashMapValueStorage(path);
+    storage.myCompactionModeReader = new FileReader(storage.myFile);
+    storage.myCompactionMode = true;
+    storage.myReadOnly = true;
+    return storage;
+  }
+
   private interface RAReader {
     void get(long addr, byte[] dst, int off, int len) throws IOException;
     void dispose();
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.text;
+
+import com.intellij.openapi.util.text.TrigramBuilder;
+import gnu.trove.TIntHashSet;
+import junit.framework.TestCase;
+
+public class TrigramBuilderRegExpTest extends TestCase {
+  public void testLiteral() {
+    assertTrigrams("foo\\.bar\\(", "foo.bar(");
+  }
+
+  public void testOptionalCharsBreakLiterals() {
+    assertTrigrams("abcd?efgh", "abc", "efgh");
+    assertTrigrams("xyzw*uvts", "xyz", "uvts");
+    assertTrigrams("xyzw{0,2}uvts", "xyz", "uvts");
+  }
+
+  public void testRequiredRepetitionKeepsChar() {
+    assertTrigrams("hel+oworld", "hel", "oworld");
+    assertTrigrams("xyzw{2}uvts", "xyzw", "uvts");
+  }
+
+  public void testGroupsAndClassesAreSkipped() {
+    assertTrigrams("abc(d|e)fgh", "abc", "fgh");
+    assertTrigrams("[]xyz]hello\\s+world", "hello", "world");
+    assertTrigrams("(?i)HELLO", "hello");
+  }
+
+  public void testEscapes() {
+    assertTrigrams("\\u0041bcdef", "bcdef");
+    assertTrigrams("\\p{L}xyzw", "xyzw");
+    assertTrigrams("\\Qa.b.c\\E+xyz", "a.b.c", "xyz");
+  }
+
+  public void testNothingGuaranteed() {
+    assertTrigrams("abcdef|ghijkl");
+    assertTrigrams("(?x)abc def");
+    assertTrigrams("a.b.c.d");
+  }
+
+  private static void assertTrigrams(String regExp, String... literals) {
+    TIntHashSet expected = new TIntHashSet();
+    for (String literal : literals) {
+      expected.addAll(TrigramBuilder.buildTrigram(literal).toArray());
+    }
+    assertEquals(regExp, expected, TrigramBuilder.buildRegExpTrigram(regExp));
+  }
+}
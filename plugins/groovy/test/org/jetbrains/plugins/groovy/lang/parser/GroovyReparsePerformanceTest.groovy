@@ -0,0 +1,57 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.plugins.groovy.lang.parser
+
+import com.intellij.psi.AbstractReparsePerformanceTestCase
+import org.jetbrains.annotations.NotNull
+
+class GroovyReparsePerformanceTest extends AbstractReparsePerformanceTestCase {
+  @Override
+  protected String getFileName() {
+    return "a.groovy"
+  }
+
+  @NotNull
+  @Override
+  protected String generateText(int lineCount) {
+    StringBuilder text = new StringBuilder("class A {\n  int field\n\n")
+    for (i in 0..<lineCount.intdiv(5)) {
+      text << """  def method$i(p) {
+    def x = p * $i
+    return x + field
+  }
+
+"""
+    }
+    return text.append("}\n").toString()
+  }
+
+  public void testTyping() {
+    doTypingTest(1000, "return x", " + foo(x, 's')", 1000)
+  }
+
+  public void testTypingInHugeFile() {
+    doTypingTest(100000, "return x", " + foo(x, 's')", 3000)
+  }
+
+  public void testPaste() {
+    doPasteTest(10000, "  }\n", "\n  def pasted(String s) {\n    if (s) {\n      println s\n    }\n  }\n", 1000)
+  }
+
+  public void testReplaceAll() {
+    doBulkReplaceTest(10000, "field", "counter", 3000)
+  }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.codeInsight;
+
+import com.intellij.psi.AbstractReparsePerformanceTestCase;
+import org.jetbrains.annotations.NotNull;
+
+public class XmlReparsePerformanceTest extends AbstractReparsePerformanceTestCase {
+  @Override
+  protected String getFileName() {
+    return "a.xml";
+  }
+
+  @NotNull
+  @Override
+  protected String generateText(int lineCount) {
+    StringBuilder text = new StringBuilder("<?xml version=\"1.0\"?>\n<root>\n");
+    for (int i = 0; i < lineCount / 4; i++) {
+      text.append("  <item id=\"").append(i).append("\">\n")
+        .append("    <name>item ").append(i).append("</name>\n")
+        .append("    <value>").append(i * 7).append("</value>\n")
+        .append("  </item>\n");
+    }
+    return text.append("</root>\n").toString();
+  }
+
+  public void testTyping() {
+    doTypingTest(1000, "<name>", "<b attr=\"v\">text</b>", 1000);
+  }
+
+  public void testTypingInHugeFile() {
+    doTypingTest(100000, "<name>", "<b attr=\"v\">text</b>", 5000);
+  }
+
+  public void testPaste() {
+    doPasteTest(10000, "</item>\n", "  <item id=\"new\">\n    <name>pasted</name>\n    <value>0</value>\n  </item>\n", 1000);
+  }
+
+  public void testReplaceAll() {
+    doBulkReplaceTest(10000, "<value>", "<value kind=\"int\">", 3000);
+  }
+}